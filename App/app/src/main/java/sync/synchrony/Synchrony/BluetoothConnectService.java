@@ -9,7 +9,9 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
@@ -21,6 +23,7 @@ import androidx.core.app.NotificationCompat;
 import com.example.Synchrony.R;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -35,6 +38,18 @@ public class BluetoothConnectService extends Service {
 
     private PCListenerThread mPCListenerThread;
 
+    // How long a new connection to a PC wins over any other socket from the same PC, so that
+    // when the phone dials a PC that is also dialing the phone, only one socket is kept.
+    private static final long CONNECTION_RACE_WINDOW = 15 * 1000;
+
+    // Outbound connections being dialed, keyed by address. Guarded by itself.
+    private final HashMap<String, OutboundConnector> mOutboundConnectors = new HashMap<>();
+
+    // When each PC's current connection was started. Guarded by mOutboundConnectors.
+    private final HashMap<String, Long> mConnectionStartTimes = new HashMap<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     // Constant used to tell MainActivity to add a PC to PCRecView.
     public static final String ADD_TO_MAIN_ACTIVITY_ACTION = "addToPCList";
 
@@ -103,8 +118,81 @@ public class BluetoothConnectService extends Service {
                     // Notify the rest of the app that it is connecting.
                     Utils.broadcastConnectionChange(getApplicationContext(),
                             bluetoothDevice.getAddress());
+
+                    connectOutbound(bluetoothDevice);
+                }
+            }
+    }
+
+    /**
+     * Dials a PC that is set to connect automatically, rather than only waiting for it to dial
+     * the phone. Both are raced, and whichever socket comes up first is used. Only PCs that
+     * have told the phone their service UUID can be dialed.
+     */
+    private void connectOutbound(BluetoothDevice bluetoothDevice) {
+        String address = bluetoothDevice.getAddress();
+        PairedPC pairedPC = Utils.getPairedPC(address);
+        if (pairedPC == null || pairedPC.getServiceUuid() == null ||
+                isConnectionRunning(address)) {
+            return;
+        }
+
+        synchronized (mOutboundConnectors) {
+            if (mOutboundConnectors.containsKey(address)) {
+                return;
+            }
+
+            OutboundConnector outboundConnector = new OutboundConnector(bluetoothDevice,
+                    UUID.fromString(pairedPC.getServiceUuid()));
+            mOutboundConnectors.put(address, outboundConnector);
+            outboundConnector.start();
+            mHandler.postDelayed(outboundConnector::giveUp, OutboundConnector.CONNECT_TIMEOUT);
+        }
+    }
+
+    /**
+     * Starts a connection on a socket, unless another socket from the same PC just won the
+     * race for it. An inbound socket also stops the phone from dialing the PC. Returns whether
+     * the socket was used, and if not, the caller should close it.
+     */
+    private boolean claimSocket(BluetoothSocket bluetoothSocket,
+                                OutboundConnector outboundConnector) {
+        String address = bluetoothSocket.getRemoteDevice().getAddress();
+        synchronized (mOutboundConnectors) {
+            OutboundConnector dialing = mOutboundConnectors.get(address);
+            if (dialing != null && (outboundConnector == null || dialing == outboundConnector)) {
+                mOutboundConnectors.remove(address);
+                if (dialing != outboundConnector) {
+                    dialing.giveUp();
                 }
             }
+
+            Long startTime = mConnectionStartTimes.get(address);
+            if (startTime != null &&
+                    SystemClock.elapsedRealtime() - startTime < CONNECTION_RACE_WINDOW &&
+                    isConnectionRunning(address)) {
+                Log.d(TAG, String.format("claimSocket: " +
+                        "Dropping %s socket for device: %s, it lost the race!",
+                        outboundConnector != null ? "outbound" : "inbound", address));
+                return false;
+            }
+
+            mConnectionStartTimes.put(address, SystemClock.elapsedRealtime());
+            startConnection(getApplicationContext(), bluetoothSocket);
+            return true;
+        }
+    }
+
+    /** Returns whether a connection thread for a PC is still running. */
+    private boolean isConnectionRunning(String address) {
+        for (BluetoothConnectionThread bluetoothConnectionThread :
+                Utils.getCurrentlyRunningThreads()) {
+            if (bluetoothConnectionThread.getDeviceAddress().equals(address) &&
+                    bluetoothConnectionThread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void registerReceiver() {
@@ -140,18 +228,24 @@ public class BluetoothConnectService extends Service {
                         break;
                     }
 
-                    // If bluetooth is disabled, stop all connection threads.
+                    // If bluetooth is disabled, stop all connection threads, and once it is back
+                    // on, listen again straight away.
                     case BluetoothAdapter.ACTION_STATE_CHANGED:
-                        Log.d(TAG, "onReceive: " +
-                                "Bluetooth disabled! Stopping connection threads!");
-
                         int extraState = intent.getIntExtra(
                                 BluetoothAdapter.EXTRA_STATE, -1);
-                        if (extraState == BluetoothAdapter.STATE_OFF) {
+                        if (extraState == BluetoothAdapter.STATE_TURNING_OFF) {
+                            mPCListenerThread.closeBluetoothServerSocket();
+                        } else if (extraState == BluetoothAdapter.STATE_OFF) {
+                            Log.d(TAG, "onReceive: " +
+                                    "Bluetooth disabled! Stopping connection threads!");
                             for (BluetoothConnectionThread bluetoothConnectionThread :
                                     Utils.getCurrentlyRunningThreads()) {
                                 bluetoothConnectionThread.interrupt();
                             }
+                        } else if (extraState == BluetoothAdapter.STATE_ON) {
+                            Log.d(TAG, "onReceive: " +
+                                    "Bluetooth enabled! Listening for devices again!");
+                            mPCListenerThread.rearm();
                         }
                         break;
                 }
@@ -174,6 +268,13 @@ public class BluetoothConnectService extends Service {
         String deviceAddress = bluetoothDevice.getAddress();
         String deviceName = bluetoothDevice.getName();
 
+        synchronized (mOutboundConnectors) {
+            OutboundConnector outboundConnector = mOutboundConnectors.remove(deviceAddress);
+            if (outboundConnector != null) {
+                outboundConnector.giveUp();
+            }
+        }
+
         // Interrupt all associated bluetooth connection threads for the device.
         for (BluetoothConnectionThread bluetoothConnectionThread :
                 Utils.getCurrentlyRunningThreads()) {
@@ -243,6 +344,13 @@ public class BluetoothConnectService extends Service {
 
         Utils.setForegroundRunning(false);
         mPCListenerThread.interrupt();
+        synchronized (mOutboundConnectors) {
+            for (OutboundConnector outboundConnector : mOutboundConnectors.values()) {
+                outboundConnector.giveUp();
+            }
+            mOutboundConnectors.clear();
+        }
+        mHandler.removeCallbacksAndMessages(null);
         unregisterReceiver(mBluetoothConnectReceiver);
         stopForeground(true);
         stopSelf();
@@ -256,32 +364,64 @@ public class BluetoothConnectService extends Service {
 
     /**
      * Thread responsible for listening for compatible devices and assigning connection
-     * threads as needed
+     * threads as needed. The server socket is registered under the app's stable UUID and kept
+     * open between connections, so PCs can cache the service record. If it can't be created,
+     * or accept keeps failing, it is retried with exponential backoff and jitter. While
+     * Bluetooth is off the thread sleeps until rearm is called.
      */
     private class PCListenerThread extends Thread {
-        private BluetoothServerSocket mBluetoothServerSocket;
+        // Backoff between attempts to create the server socket, doubling on every failure.
+        private static final long MIN_BACKOFF = 500;
+        private static final long MAX_BACKOFF = 60 * 1000;
+
         private final Context mContext;
 
+        private volatile BluetoothServerSocket mBluetoothServerSocket;
+
+        // Failures since the last connection was accepted, which sets the next backoff.
+        // Guarded by mRearmLock.
+        private int mFailures = 0;
+        private boolean mRearmed = false;
+        private final Object mRearmLock = new Object();
+
         public PCListenerThread(Context context) {
+            super("PCListenerThread");
             mContext = context;
-            mBluetoothServerSocket = getBluetoothServerSocket();
         }
 
         @Override
         public void run() {
             while (!interrupted()) {
-                BluetoothSocket bluetoothSocket = null;
-                try {
-                    if (!interrupted() && mBluetoothServerSocket != null) {
-                        if (BluetoothAdapter.getDefaultAdapter().isEnabled()) {
-                            Log.d(TAG, "run: Listening for devices...");
-                            bluetoothSocket = mBluetoothServerSocket.accept();
-                        }
-                    } else if (!interrupted() && mBluetoothServerSocket == null) {
-                        mBluetoothServerSocket = getBluetoothServerSocket();
+                if (!BluetoothAdapter.getDefaultAdapter().isEnabled()) {
+                    Log.d(TAG, "run: Bluetooth is off, waiting for it to come back on...");
+                    waitForRearm(0);
+                    continue;
+                }
+
+                BluetoothServerSocket bluetoothServerSocket = mBluetoothServerSocket;
+                if (bluetoothServerSocket == null) {
+                    bluetoothServerSocket = getBluetoothServerSocket();
+                    if (bluetoothServerSocket == null) {
+                        backOff();
+                        continue;
                     }
+                }
+
+                BluetoothSocket bluetoothSocket;
+                try {
+                    Log.d(TAG, "run: Listening for devices...");
+                    bluetoothSocket = bluetoothServerSocket.accept();
                 } catch (IOException e) {
+                    // The server socket is closed when Bluetooth turns off, or when the thread
+                    // is interrupted, and can't be used again either way.
                     Log.e(TAG, "run: Error accepting device connection:", e);
+                    closeBluetoothServerSocket();
+                    backOff();
+                    continue;
+                }
+
+                synchronized (mRearmLock) {
+                    mFailures = 0;
                 }
 
                 if (bluetoothSocket != null) {
@@ -300,8 +440,7 @@ public class BluetoothConnectService extends Service {
                             if (pairedPC.isConnecting()) {
                                 Log.d(TAG, String.format("run: " +
                                         "Starting connection for device: %s...", deviceTag));
-                                startConnection(mContext, bluetoothSocket);
-                                closeSocket = false;
+                                closeSocket = !claimSocket(bluetoothSocket, null);
                             }
                         }
                     }
@@ -317,24 +456,200 @@ public class BluetoothConnectService extends Service {
                     }
                 }
             }
+
+            closeBluetoothServerSocket();
+            Log.d(TAG, "run: Stopped listening for devices!");
+        }
+
+        /** Stops the thread, closing the server socket so that accept returns. */
+        @Override
+        public void interrupt() {
+            super.interrupt();
+            closeBluetoothServerSocket();
+        }
+
+        /**
+         * Wakes the thread up to create a new server socket straight away, skipping any
+         * backoff. Called once Bluetooth is back on.
+         */
+        public void rearm() {
+            synchronized (mRearmLock) {
+                mFailures = 0;
+                mRearmed = true;
+                mRearmLock.notifyAll();
+            }
+        }
+
+        /** Closes the server socket, for when Bluetooth is turning off. */
+        public void closeBluetoothServerSocket() {
+            BluetoothServerSocket bluetoothServerSocket = mBluetoothServerSocket;
+            mBluetoothServerSocket = null;
+            if (bluetoothServerSocket != null) {
+                try {
+                    bluetoothServerSocket.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "closeBluetoothServerSocket: " +
+                            "Error closing bluetooth server socket!", e);
+                }
+            }
         }
 
         public BluetoothServerSocket getBluetoothServerSocket() {
-            BluetoothServerSocket tmp = null;
             try {
                 BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
-                tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(
-                        mContext.getString(R.string.app_name), UUID.randomUUID());
+                mBluetoothServerSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(
+                        mContext.getString(R.string.app_name), Utils.getUuid());
                 Log.d(TAG, "getBluetoothServerSocket: " +
                         "Created bluetooth server socket for device connections!");
-
             } catch (IOException e) {
-                SystemClock.sleep(5000);
+                Log.e(TAG, "getBluetoothServerSocket: " +
+                        "Couldn't create bluetooth server socket!", e);
+                mBluetoothServerSocket = null;
             }
-            mBluetoothServerSocket = tmp;
 
             return mBluetoothServerSocket;
         }
+
+        /**
+         * Waits before the next attempt, twice as long after every failure up to MAX_BACKOFF.
+         * Each wait is picked at random from the upper half of the range, so that listeners
+         * that failed together don't all retry together.
+         */
+        private void backOff() {
+            long backoff;
+            synchronized (mRearmLock) {
+                backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(mFailures, 16));
+                mFailures++;
+            }
+
+            long delay = backoff / 2 + (long) (Math.random() * (backoff / 2));
+            Log.d(TAG, String.format("backOff: Retrying in %d ms...", delay));
+            waitForRearm(delay);
+        }
+
+        /**
+         * Sleeps until rearm is called or timeout milliseconds pass. A timeout of 0 waits for
+         * rearm only.
+         */
+        private void waitForRearm(long timeout) {
+            synchronized (mRearmLock) {
+                try {
+                    long deadline = SystemClock.elapsedRealtime() + timeout;
+                    while (!mRearmed) {
+                        long remaining = deadline - SystemClock.elapsedRealtime();
+                        if (timeout != 0 && remaining <= 0) {
+                            break;
+                        }
+                        mRearmLock.wait(timeout == 0 ? 0 : remaining);
+                    }
+                } catch (InterruptedException e) {
+                    super.interrupt();
+                }
+                mRearmed = false;
+            }
+        }
+    }
+
+    /**
+     * Thread that dials a paired PC's own service record, racing the PCListenerThread's accept.
+     * The PC's app may not be listening yet right after the link comes up, so it keeps trying
+     * until it connects, the PC dials in first or CONNECT_TIMEOUT passes.
+     */
+    private class OutboundConnector extends Thread {
+        // How long to keep dialing before leaving it to the PC to dial in.
+        static final long CONNECT_TIMEOUT = 10 * 1000;
+
+        // Pause between attempts while the PC isn't listening yet.
+        private static final long RETRY_INTERVAL = 1000;
+
+        private final BluetoothDevice mDevice;
+        private final UUID mServiceUuid;
+        private final String mDeviceTag;
+
+        // The socket being connected. Guarded by this.
+        private BluetoothSocket mBluetoothSocket;
+        private boolean mGaveUp = false;
+
+        OutboundConnector(BluetoothDevice device, UUID serviceUuid) {
+            super("OutboundConnector " + device.getAddress());
+            this.mDevice = device;
+            this.mServiceUuid = serviceUuid;
+            this.mDeviceTag = String.format("%s (%s)", device.getName(), device.getAddress());
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtime();
+            while (!isGivenUp()) {
+                BluetoothSocket bluetoothSocket = null;
+                try {
+                    bluetoothSocket = mDevice.createRfcommSocketToServiceRecord(mServiceUuid);
+                    synchronized (this) {
+                        if (mGaveUp) {
+                            break;
+                        }
+                        mBluetoothSocket = bluetoothSocket;
+                    }
+
+                    // Discovery slows connecting down considerably.
+                    BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
+                    bluetoothSocket.connect();
+
+                    synchronized (this) {
+                        // Once connected, giving up no longer closes the socket.
+                        mBluetoothSocket = null;
+                        if (mGaveUp) {
+                            closeQuietly(bluetoothSocket);
+                            break;
+                        }
+                    }
+
+                    Log.d(TAG, String.format("run: " +
+                            "Dialed device: %s in %d ms!", mDeviceTag,
+                            SystemClock.elapsedRealtime() - start));
+                    if (!claimSocket(bluetoothSocket, this)) {
+                        closeQuietly(bluetoothSocket);
+                    }
+                    return;
+                } catch (IOException e) {
+                    closeQuietly(bluetoothSocket);
+                    Log.d(TAG, String.format("run: " +
+                            "Couldn't dial device: %s yet: %s", mDeviceTag, e.getMessage()));
+                }
+
+                SystemClock.sleep(RETRY_INTERVAL);
+            }
+
+            synchronized (mOutboundConnectors) {
+                mOutboundConnectors.remove(mDevice.getAddress(), this);
+            }
+            Log.d(TAG, String.format("run: " +
+                    "Stopped dialing device: %s after %d ms!", mDeviceTag,
+                    SystemClock.elapsedRealtime() - start));
+        }
+
+        /** Stops dialing, closing the socket if it is still connecting. */
+        synchronized void giveUp() {
+            mGaveUp = true;
+            closeQuietly(mBluetoothSocket);
+            mBluetoothSocket = null;
+        }
+
+        private synchronized boolean isGivenUp() {
+            return mGaveUp;
+        }
+
+        private void closeQuietly(BluetoothSocket bluetoothSocket) {
+            if (bluetoothSocket == null) {
+                return;
+            }
+
+            try {
+                bluetoothSocket.close();
+            } catch (IOException e) {
+                // Nothing more to do with it either way.
+            }
+        }
     }
 }
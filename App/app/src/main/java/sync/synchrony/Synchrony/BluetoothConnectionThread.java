@@ -9,12 +9,11 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
-import android.content.ClipData;
-import android.content.ClipboardManager;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.SystemClock;
+import android.net.Uri;
 import android.provider.Telephony;
 import android.telephony.SmsManager;
 import android.telephony.TelephonyManager;
@@ -26,21 +25,23 @@ import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
 import com.example.Synchrony.R;
-import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Thread manages the connections for all paired PC's.
@@ -72,12 +73,84 @@ class BluetoothConnectionThread extends Thread {
     // Constant used to get value of new notification from NotificationListener.
     public static final String NEW_NOTIFICATION_KEY = "newNotificationKey";
 
-    // Heartbeat timing variable. Timing used to track connection status.
+    // Heartbeat timing variables. A heartbeat is only sent once nothing has been sent or
+    // received for the current interval. Old clients drop the connection after 10 seconds of
+    // silence, so they always get the minimum interval. Clients that completed the handshake
+    // get an interval that doubles while the connection stays idle.
+    private static final int MIN_HEARTBEAT_INTERVAL = 5000;
+    private static final int MAX_HEARTBEAT_INTERVAL = 60000;
+    private long mHeartbeatInterval = MIN_HEARTBEAT_INTERVAL;
+
+    // How long the client has to answer a heartbeat before it is assumed to be gone.
+    private static final int HEARTBEAT_TIMEOUT = 15000;
+
+    // How often the phone's data is synced with the client.
+    private static final long SYNC_INTERVAL = 1000 * 120;
+
+    // When anything other than a heartbeat was last sent or received.
+    private volatile long mLastTrafficTime = System.currentTimeMillis();
+
+    // Number of times the connection loop woke up, logged when the connection stops.
+    private long mWakeups = 0;
+
+    private static final byte[] sClientHeartbeat =
+            "client_heartbeat".getBytes(StandardCharsets.UTF_8);
+
+    // How long to wait for the client's hello before treating it as an old client.
+    private static final int HANDSHAKE_TIMEOUT = 1500;
+
+    // Protocol version and capabilities agreed on with the client. See Capabilities.
+    private volatile int mProtocolVersion = Capabilities.LEGACY_VERSION;
+    private volatile int mCapabilities = 0;
+    private volatile boolean mHandshakeComplete = false;
+
+    // Set while the client has agreed to ENCRYPTION but hasn't sent its key exchange yet.
+    // Nothing is synced until the frames are sealed.
+    private volatile boolean mAwaitingKeyExchange = false;
+
+    // Set once the handshake has finished or timed out, after which the connection may carry
+    // the user's data. See isReadyForData.
+    private volatile boolean mHandshakeSettled = false;
+
+    // A flow control request that arrived before the key exchange. Applying it then would
+    // resend the last connection's frames in the clear. See applyFlowControl.
+    private int mPendingFlowWindow = -1;
+    private int mPendingResumeFrom = -1;
     private long mLastServerHeartBeat = -1;
+    private long mStartTime;
 
     // Syncer object used to sync information to the client device in the background.
     private Syncer mSyncer;
 
+    // Reads from mBluetoothSocket and passes complete frames to this thread.
+    private final SocketReader mSocketReader;
+
+    // Writes all outgoing frames to mBluetoothSocket.
+    private final SocketWriter mSocketWriter;
+
+    // Maps the commands the client sends to their handlers.
+    private final CommandRegistry mCommandRegistry;
+
+    // Sends and receives files over the sync socket.
+    private final FileTransferManager mFileTransfers;
+
+    // Keeps the clipboard in sync with the client's.
+    private final ClipboardSync mClipboardSync;
+
+    // Carries sync records and file chunks over the local network, once the client agrees to
+    // LAN_TRANSPORT and connects to it. Guarded by mLanTransportLock.
+    private LanTransport mLanTransport;
+    private final Object mLanTransportLock = new Object();
+
+    // Whether the running sync's frames go over mLanTransport. Picked as each sync starts, so
+    // that one sync's frames are never split between the two transports.
+    private volatile boolean mSyncOverLan = false;
+
+    // The connection's notification, kept so that file transfer progress can be shown on it.
+    // Guarded by mNotificationLock, since transfers update it from their own threads.
+    private NotificationCompat.Builder mNotificationBuilder;
+    private final Object mNotificationLock = new Object();
+
     public BluetoothConnectionThread(Context context, BluetoothDevice device,
                                      BluetoothSocket bluetoothSocket) {
         this.mContext = context;
@@ -89,6 +162,18 @@ class BluetoothConnectionThread extends Thread {
 
         this.mDeviceTag = String.format("%s (%s)", mDevice.getName(), mDevice.getAddress());
 
+        FlowControl flowControl = FlowControl.forDevice(mDevice.getAddress());
+        Transport transport = Transport.of(mBluetoothSocket);
+        mSocketReader = new SocketReader(transport, flowControl, mDeviceTag);
+        mSocketWriter = new SocketWriter(transport, mSocketReader, flowControl, this,
+                mDeviceTag);
+
+        mCommandRegistry = new CommandRegistry(mDeviceTag);
+        mFileTransfers = new FileTransferManager(mContext, this, mDevice.getAddress(),
+                FileTransferManager.DEFAULT_WINDOW, mDeviceTag);
+        mClipboardSync = new ClipboardSync(mContext, this, mDeviceTag);
+        registerCommandHandlers();
+
         registerBluetoothConnectionThreadReceiver();
     }
 
@@ -98,6 +183,12 @@ class BluetoothConnectionThread extends Thread {
 
         createNotification();
 
+        mSocketReader.start();
+        mSocketWriter.start();
+
+        mStartTime = System.currentTimeMillis();
+        performHandshake();
+
         while (!interrupted()) {
             manageConnectedSyncSocket();
 
@@ -109,69 +200,120 @@ class BluetoothConnectionThread extends Thread {
         if (mSyncer != null && mSyncer.isAlive()) {
             mSyncer.interrupt();
         }
+        mFileTransfers.cancelAll();
+        mClipboardSync.stop();
+        synchronized (mLanTransportLock) {
+            if (mLanTransport != null) {
+                mLanTransport.cancel();
+            }
+        }
 
+        // Closing the socket also unblocks and stops the socket reader and writer.
         closeBluetoothSocket();
-
-        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(mContext);
-        notificationManager.cancel(mDevice.getAddress(), mNotificationID);
+        mSocketReader.interrupt();
+        mSocketWriter.interrupt();
+
+        // Transfers that are still winding down must not bring the notification back.
+        synchronized (mNotificationLock) {
+            mNotificationBuilder = null;
+            NotificationManagerCompat notificationManager =
+                    NotificationManagerCompat.from(mContext);
+            notificationManager.cancel(mDevice.getAddress(), mNotificationID);
+        }
 
         mContext.getApplicationContext().unregisterReceiver(mBluetoothConnectionThreadReceiver);
 
+        mCommandRegistry.logStats();
+        EncodedFrameCache.logStats();
+        Log.d(TAG, String.format("run: Connection loop woke up %d times in %d minutes for " +
+                        "device: %s!", mWakeups,
+                (System.currentTimeMillis() - mStartTime) / 60000, mDeviceTag));
+
         Log.d(TAG, String.format("run: Stopped connection thread for device %s!", mDeviceTag));
     }
 
-    public String receiveCommand() {
-        BluetoothDevice device = mBluetoothSocket.getRemoteDevice();
-        final String deviceTag = String.format("%s (%s)", device.getName(), device.getAddress());
-        StringBuilder commandBuilder = new StringBuilder();
-        int bytesRead = 0;
+    /**
+     * Queues a command to be sent to the client by the connection's writer thread, on one of the
+     * logical channels in Channel. Returns whether the command was queued.
+     */
+    public boolean sendCommand(byte channel, String stringCommand) {
+        return sendFrame(Frame.command(channel, stringCommand));
+    }
 
-        try {
-            InputStream inputStream = mBluetoothSocket.getInputStream();
-            while (inputStream.available() > 0) {
-                int available = inputStream.available();
-                byte[] bytes = new byte[inputStream.available()];
-                bytesRead += inputStream.read(bytes);
+    /**
+     * Queues a command over Bluetooth and runs onAcked once the client acks it, which means
+     * everything queued over Bluetooth before it on the same channel arrived too. Returns false
+     * if the client hasn't enabled flow control or the command couldn't be queued, in which
+     * case onAcked never runs.
+     */
+    public boolean sendCommandWithAck(byte channel, String stringCommand, Runnable onAcked) {
+        mLastTrafficTime = System.currentTimeMillis();
+        return mSocketWriter.send(Frame.command(channel, stringCommand), onAcked);
+    }
 
-                commandBuilder.append(new String(bytes));
+    /**
+     * Queues a frame to be sent to the client. Sync records and file chunks go over the local
+     * network while it is connected, everything else over Bluetooth. Returns whether the frame
+     * was queued.
+     */
+    public boolean sendFrame(Frame frame) {
+        mLastTrafficTime = System.currentTimeMillis();
+
+        LanTransport lanTransport = getLanTransport();
+        if (lanTransport != null && lanTransport.isActive()) {
+            boolean overLan = frame.getChannel() == Channel.FILES ||
+                    (frame.getChannel() == Channel.SYNC && mSyncOverLan);
+            // Falls through to Bluetooth if the socket has just dropped.
+            if (overLan && lanTransport.send(frame)) {
+                return true;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e(TAG, String.format("receiveCommand: " +
-                            "Error receiving incoming bytes from client for device: %s!",
-                    deviceTag), e);
-            return "Receive Failure";
-        }
-
-        if (bytesRead > 0) {
-            Log.d(TAG, String.format("receiveCommand: " +
-                            "%d bytes successfully received from client for device: %s!",
-                    bytesRead, deviceTag));
-            return commandBuilder.toString();
-        } else {
-            return null;
         }
+        return mSocketWriter.send(frame);
     }
 
-    public static boolean sendCommand(BluetoothSocket bluetoothSocket, String stringCommand) {
-        BluetoothDevice device = bluetoothSocket.getRemoteDevice();
-        final String deviceTag = String.format("%s (%s)", device.getName(), device.getAddress());
+    /**
+     * Picks the transport for a sync that is about to start, waiting for the local network
+     * socket if the client is still connecting to it. Called from the Syncer's own thread.
+     */
+    public void chooseSyncTransport() throws InterruptedException {
+        LanTransport lanTransport = getLanTransport();
+        mSyncOverLan = lanTransport != null &&
+                lanTransport.awaitActive(LanTransport.CONNECT_TIMEOUT);
+    }
 
-        try {
-            byte[] command = (stringCommand + Utils.COMMAND_DELIMITER).getBytes();
-            OutputStream outputStream = bluetoothSocket.getOutputStream();
-            outputStream.write(command);
+    /** Returns whether sync records go over the local network socket. */
+    public boolean isSyncOverLan() {
+        return mSyncOverLan;
+    }
 
-            Log.d(TAG, String.format("sendCommand: " +
-                            "Successfully sent command to client for device: %s: %s!",
-                    deviceTag, new String(command)));
+    /** Called by a LanTransport once its socket is closed, so bulk traffic goes back. */
+    public void onLanTransportClosed(LanTransport lanTransport) {
+        synchronized (mLanTransportLock) {
+            if (mLanTransport == lanTransport) {
+                mLanTransport = null;
+                mSyncOverLan = false;
+            }
+        }
+    }
 
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, String.format("sendCommand: " +
-                    "Couldn't send command to client for device: %s!", deviceTag), e);
+    /** Offers the client a socket on the local network, unless one is already up. */
+    private void offerLanTransport() {
+        if (!hasCapability(Capabilities.LAN_TRANSPORT) || mAwaitingKeyExchange) {
+            return;
+        }
 
-            return false;
+        synchronized (mLanTransportLock) {
+            if (mLanTransport == null) {
+                mLanTransport = new LanTransport(this, mSocketReader.getFrameQueue(),
+                        hasCapability(Capabilities.COMPRESSION), mDeviceTag);
+                mLanTransport.start();
+            }
+        }
+    }
+
+    private LanTransport getLanTransport() {
+        synchronized (mLanTransportLock) {
+            return mLanTransport;
         }
     }
 
@@ -195,9 +337,17 @@ class BluetoothConnectionThread extends Thread {
                         case PCDetailsActivity.SEND_CLIPBOARD_ACTION: {
                             String clipboard = intent.getStringExtra(
                                     PCDetailsActivity.CLIPBOARD_KEY);
+                            if (!isReadyForData()) {
+                                showStillConnectingToast();
+                                break;
+                            }
 
-                            sendCommand(mBluetoothSocket,
-                                    String.format("incoming_clipboard: %s", clipboard));
+                            if (hasCapability(Capabilities.CLIPBOARD_SYNC)) {
+                                mClipboardSync.sendText(clipboard);
+                            } else {
+                                sendCommand(Channel.CLIPBOARD,
+                                        String.format("incoming_clipboard: %s", clipboard));
+                            }
 
                             Toast.makeText(mContext.getApplicationContext(),
                                     String.format("Clipboard sent to %s!", mDevice.getName()),
@@ -205,6 +355,22 @@ class BluetoothConnectionThread extends Thread {
                             break;
                         }
 
+                        case PCDetailsActivity.SEND_FILE_ACTION: {
+                            Uri fileUri = intent.getParcelableExtra(
+                                    PCDetailsActivity.FILE_URI_KEY);
+                            if (!isReadyForData()) {
+                                showStillConnectingToast();
+                                break;
+                            }
+
+                            if (hasCapability(Capabilities.FILE_TRANSFER)) {
+                                mFileTransfers.send(fileUri);
+                            } else {
+                                sendFileWithOpp(fileUri);
+                            }
+                            break;
+                        }
+
                         case sStopConnectionAction: {
                             NotificationManagerCompat notificationManager =
                                     NotificationManagerCompat.from(context);
@@ -215,29 +381,42 @@ class BluetoothConnectionThread extends Thread {
 
                             Utils.broadcastConnectionChange(mContext.getApplicationContext(),
                                     mDevice.getAddress());
+
+                            // Wake the thread up so it stops right away instead of after its
+                            // next heartbeat.
+                            interrupt();
                             break;
                         }
 
                         case PCDetailsActivity.START_SYNC_ACTION: {
-                            startSync(Syncer.SYNC_ALL);
+                            startSync(Syncer.SYNC_ALL, true);
                             break;
                         }
                     }
                 } else {
                     switch (intent.getAction()) {
                         case Telephony.Sms.Intents.SMS_RECEIVED_ACTION: {
-                            startSync(Syncer.SYNC_MESSAGES);
+                            startSync(Syncer.SYNC_MESSAGES, false);
                             break;
                         }
 
                         case NEW_NOTIFICATION_ACTION: {
                             boolean socketConnected = Objects.requireNonNull(
                                     Utils.getPairedPC(mDevice.getAddress())).isSyncSocketConnected();
-                            if (socketConnected) {
+                            // Notifications aren't queued, so one posted before the frames
+                            // are sealed is dropped rather than sent in the clear.
+                            if (socketConnected && isReadyForData()) {
                                 String notification = intent.getStringExtra(NEW_NOTIFICATION_KEY);
-                                sendCommand(mBluetoothSocket,
-                                        "incoming_notification: " + notification);
+                                // Every connection gets the same broadcast, so the
+                                // notification is only encoded by the first one.
+                                sendFrame(EncodedFrameCache.frame(Frame.TYPE_COMMAND,
+                                        Channel.NOTIFICATIONS, "incoming_notification",
+                                        notification, buffer -> {
+                                            buffer.writeUtf8("incoming_notification: ");
+                                            buffer.writeUtf8(notification);
+                                        }));
                             }
+                            break;
                         }
 
                         case TelephoneStateListener.PHONE_STATE_CHANGED_ACTION: {
@@ -264,6 +443,7 @@ class BluetoothConnectionThread extends Thread {
         IntentFilter filter = new IntentFilter();
         filter.addAction(PCDetailsActivity.SEND_CLIPBOARD_ACTION);
         filter.addAction(PCDetailsActivity.START_SYNC_ACTION);
+        filter.addAction(PCDetailsActivity.SEND_FILE_ACTION);
         filter.addAction(sStopConnectionAction);
         filter.addAction(Telephony.Sms.Intents.SMS_RECEIVED_ACTION);
         filter.addAction(NEW_NOTIFICATION_ACTION);
@@ -272,17 +452,52 @@ class BluetoothConnectionThread extends Thread {
                 .registerReceiver(mBluetoothConnectionThreadReceiver, filter);
     }
 
-    private void startSync(int toSync) {
-        if (mSyncer != null) {
-            if (mSyncer.isAlive()) {
-                mSyncer.interrupt();
+    /**
+     * Starts a sync, stopping one that is still running. fullReconcile is set for syncs the
+     * user or the client asked for, see Syncer.
+     */
+    private void startSync(int toSync, boolean fullReconcile) {
+        if (!isReadyForData()) {
+            // The periodic sync picks up whatever this would have sent.
+            Log.d(TAG, String.format("startSync: " +
+                    "Not syncing with device: %s before the handshake is done!", mDeviceTag));
+            return;
+        }
+
+        Syncer previousSyncer = mSyncer;
+        if (previousSyncer != null) {
+            if (previousSyncer.isAlive()) {
+                previousSyncer.interrupt();
             }
         }
 
-        mSyncer = new Syncer(mContext, mBluetoothSocket, toSync);
+        // The syncer waits for the socket if the client is still connecting to it.
+        offerLanTransport();
+
+        mSyncer = new Syncer(mContext, this, toSync, fullReconcile);
+        mSyncer.runAfter(previousSyncer);
         mSyncer.start();
     }
 
+    /** Tells the user that what they sent can't go out until the handshake is done. */
+    private void showStillConnectingToast() {
+        Toast.makeText(mContext.getApplicationContext(),
+                String.format("Still connecting to %s, try again in a moment!",
+                        mDevice.getName()), Toast.LENGTH_SHORT).show();
+    }
+
+    /** Hands a file to the system's Bluetooth OPP activity, for clients that can't receive it. */
+    private void sendFileWithOpp(Uri fileUri) {
+        Intent intent = new Intent();
+        intent.setAction(Intent.ACTION_SEND);
+        intent.setComponent(new ComponentName("com.android.bluetooth",
+                "com.android.bluetooth.opp.BluetoothOppLauncherActivity"));
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_STREAM, fileUri);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        mContext.startActivity(intent);
+    }
+
     private void closeBluetoothSocket() {
         if (mBluetoothSocket != null) {
             try {
@@ -332,171 +547,576 @@ class BluetoothConnectionThread extends Thread {
                         .addAction(R.drawable.ic_pc_disconnected,
                                 "Stop Connection", stopConnectionPendingIntent);
 
-        notificationManager.notify(mDevice.getAddress(),
-                mNotificationID, connectedNotification.build());
+        synchronized (mNotificationLock) {
+            mNotificationBuilder = connectedNotification;
+            notificationManager.notify(mDevice.getAddress(),
+                    mNotificationID, connectedNotification.build());
+        }
     }
 
-    /** Handles all incoming commands from the client and runs the relevant functions. */
-    public void handleCommand(String clientCommand) {
-        Log.d(TAG, String.format("handleCommand: " +
-                "Command obtained from client for device: %s: %s!", mDeviceTag, clientCommand));
+    /**
+     * Shows the progress of running file transfers on the connection's notification, or
+     * removes it once there are none left.
+     */
+    public void showTransferProgress(int transfers, long bytesDone, long bytesTotal) {
+        synchronized (mNotificationLock) {
+            if (mNotificationBuilder == null) {
+                return;
+            }
 
-        // If the client sends a list of its currently synced contacts, pass them to the syncer.
-        if (clientCommand.contains("have_contact_hashes:")) {
-            try {
-                if (mSyncer != null) {
-                    Gson gson = new Gson();
-                    String jsonString = clientCommand.split(": ")[1];
-                    HashMap<Long, Long> clientContacts = gson.fromJson(jsonString,
-                            new TypeToken<HashMap<Long, Long>>() {}.getType());
-                    mSyncer.setClientContactHashes(clientContacts);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, String.format("handleCommand: " +
-                                "Error receiving contact hashes for device: %s!",
-                        mDeviceTag), e);
-                mSyncer.interrupt();
+            if (transfers == 0) {
+                mNotificationBuilder.setContentText("Connected to device!")
+                        .setProgress(0, 0, false);
+            } else {
+                int percent = bytesTotal > 0 ? (int) (bytesDone * 100 / bytesTotal) : 0;
+                mNotificationBuilder.setContentText(transfers == 1 ? "Transferring 1 file..." :
+                                String.format("Transferring %d files...", transfers))
+                        .setProgress(100, percent, false);
             }
 
-        // If the client sends a list of its currently synced photos, pass them to the syncer.
-        } else if (clientCommand.contains("have_contact_photo_hashes:")) {
-            try {
-                if (mSyncer != null) {
-                    Gson gson = new Gson();
-                    String jsonString = clientCommand.split(": ")[1];
-                    HashMap<Long, Long> clientPhotos = gson.fromJson(jsonString,
-                            new TypeToken<HashMap<Long, Long>>() {}.getType());
-                    mSyncer.setClientContactPhotoHashes(clientPhotos);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, String.format("handleCommand: " +
-                                "Error receiving photo hashes for device: %s!",
-                        mDeviceTag), e);
-                mSyncer.interrupt();
+            NotificationManagerCompat.from(mContext).notify(mDevice.getAddress(),
+                    mNotificationID, mNotificationBuilder.build());
+        }
+    }
+
+    public String getDeviceName() {
+        return mDevice.getName();
+    }
+
+    /** Passes a complete frame from the client on to the relevant handler. */
+    private void handleFrame(Frame frame) {
+        if (!Arrays.equals(frame.getPayload(), sClientHeartbeat)) {
+            mLastTrafficTime = System.currentTimeMillis();
+        }
+
+        switch (frame.getType()) {
+            case Frame.TYPE_COMMAND:
+                mCommandRegistry.dispatch(frame.getPayload());
+                break;
+
+            case Frame.TYPE_FILE_CHUNK:
+                mFileTransfers.onChunk(frame);
+                break;
+
+            case Frame.TYPE_CLIPBOARD_CHUNK:
+                mClipboardSync.onChunk(frame);
+                break;
+
+            default:
+                Log.w(TAG, String.format("handleFrame: " +
+                        "Ignoring frame of unknown type %d from device: %s!",
+                        frame.getType(), mDeviceTag));
+                break;
+        }
+    }
+
+    /** Registers a handler for every command the client can send. */
+    private void registerCommandHandlers() {
+        // The client answers the handshake with its version and capabilities.
+        mCommandRegistry.register("key_exchange",
+                command -> handleKeyExchange(command.getArgument()));
+        mCommandRegistry.register("client_hello",
+                command -> handleClientHello(command.getArgument()));
+
+        // The client answers heartbeats, which only matters to the socket being read from.
+        mCommandRegistry.register("client_heartbeat", command -> {});
+
+        // The client sends the contacts, photos, messages and calls it already has, which the
+        // syncer waits on.
+        mCommandRegistry.register("have_contact_hashes", command -> {
+            HashMap<Long, Long> clientContacts = parseSyncArgument(command,
+                    new TypeToken<HashMap<Long, Long>>() {}.getType());
+            if (clientContacts != null) {
+                mSyncer.setClientContactHashes(clientContacts);
+            }
+        });
+        mCommandRegistry.register("have_contact_photo_hashes", command -> {
+            HashMap<Long, Long> clientPhotos = parseSyncArgument(command,
+                    new TypeToken<HashMap<Long, Long>>() {}.getType());
+            if (clientPhotos != null) {
+                mSyncer.setClientContactPhotoHashes(clientPhotos);
             }
+        });
+        mCommandRegistry.register("have_message_ids", command -> {
+            ArrayList<Long> clientMessageIDs = parseSyncArgument(command,
+                    new TypeToken<ArrayList<Long>>() {}.getType());
+            if (clientMessageIDs != null) {
+                mSyncer.setClientMessageIDs(clientMessageIDs);
+            }
+        });
+        mCommandRegistry.register("have_call_ids", command -> {
+            ArrayList<Long> clientCallIDs = parseSyncArgument(command,
+                    new TypeToken<ArrayList<Long>>() {}.getType());
+            if (clientCallIDs != null) {
+                mSyncer.setClientCallIds(clientCallIDs);
+            }
+        });
 
-        // If the client sends a list of its currently synced messages, pass them to the syncer.
-        } else if (clientCommand.contains("have_message_ids:")) {
+        // The client stored a section of the sync. See Capabilities.SYNC_RECEIPTS.
+        mCommandRegistry.register("sync_received", command -> {
             if (mSyncer != null) {
+                mSyncer.onSyncReceived(command.getArgument().trim());
+            }
+        });
+
+        // The client tells the phone the UUID of its own service record, so that the phone can
+        // dial it next time instead of waiting for the client. See BluetoothConnectService.
+        mCommandRegistry.register("client_service", command -> {
+            String serviceUuid = command.getArgument().trim();
+            try {
+                UUID.fromString(serviceUuid);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, String.format("client_service: " +
+                        "Invalid service UUID from device: %s!", mDeviceTag));
+                return;
+            }
+
+            PairedPC pairedPC = Utils.getPairedPC(mDevice.getAddress());
+            if (pairedPC != null && !serviceUuid.equals(pairedPC.getServiceUuid())) {
+                Utils.setPCServiceUuid(mDevice.getAddress(), serviceUuid);
+            }
+        });
+
+        // The client couldn't reach the phone over the local network.
+        mCommandRegistry.register("lan_unavailable", command -> {
+            LanTransport lanTransport = getLanTransport();
+            if (lanTransport != null && !lanTransport.isActive()) {
+                lanTransport.cancel();
+            }
+        });
+
+        // The client sends its clipboard.
+        mCommandRegistry.register("incoming_clipboard",
+                command -> mClipboardSync.applyText(command.getArgument()));
+
+        // The client asks for large frames to be compressed.
+        mCommandRegistry.register("enable_compression", command -> {
+            String method = command.getArgument().trim();
+            if (method.equals(FrameCompressor.METHOD_DEFLATE) && mSocketReader.isPeerFraming()) {
+                mSocketWriter.setCompressionEnabled(true);
+                sendCommand(Channel.CONTROL,
+                        "compression_enabled: " + FrameCompressor.METHOD_DEFLATE);
+
+                Log.d(TAG, String.format("enable_compression: " +
+                        "Enabled frame compression for device: %s!", mDeviceTag));
+            } else {
+                sendCommand(Channel.CONTROL, "compression_enabled: none");
+            }
+        });
+
+        // The client wants sequenced frames, acks and a credit window. The client sends the
+        // window in bytes and the last sequence number it received, or -1 for a fresh start.
+        mCommandRegistry.register("enable_flow_control", command -> {
+            String[] args = command.getArgument().trim().split(" ");
+            if (mSocketReader.isPeerFraming() && args.length == 2) {
                 try {
-                    Gson gson = new Gson();
-                    String jsonString = clientCommand.split(": ")[1];
-                    ArrayList<Long> clientMessageIDs = gson.fromJson(jsonString,
-                            new TypeToken<ArrayList<Long>>() {
-                            }.getType());
-                    mSyncer.setClientMessageIDs(clientMessageIDs);
-                } catch (Exception e) {
-                    Log.e(TAG, String.format("handleCommand: " +
-                                    "Error receiving message id's for device: %s!",
-                            mDeviceTag), e);
-                    mSyncer.interrupt();
+                    applyFlowControl(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, String.format("enable_flow_control: " +
+                            "Invalid flow control request from device: %s!", mDeviceTag));
                 }
             }
+        });
+
+        // The client requests a sync.
+        mCommandRegistry.register("do_sync", command -> startSync(Syncer.SYNC_ALL, true));
 
-        // If the client sends a list of its currently synced calls, pass them to the syncer.
-        }  else if (clientCommand.contains("have_call_ids:")) {
+        // The client tries to send a message.
+        mCommandRegistry.register("send_sms", command -> {
             try {
-                if (mSyncer != null) {
-                    Gson gson = new Gson();
-                    String jsonString = clientCommand.split(": ")[1];
-                    ArrayList<Long> clientCallIDs = gson.fromJson(jsonString,
-                            new TypeToken<ArrayList<Long>>() {}.getType());
-                    mSyncer.setClientCallIds(clientCallIDs);
+                HashMap<String, String> commandData = JsonCodec.getGson().fromJson(
+                        command.getArgumentReader(),
+                        new TypeToken<HashMap<String, String>>() {}.getType());
+
+                SmsManager smsManager = SmsManager.getDefault();
+                smsManager.sendTextMessage(commandData.get("number"),
+                        null, commandData.get("message"),
+                        null, null);
+            } catch (JsonParseException e) {
+                Log.e(TAG, String.format("send_sms: " +
+                        "Invalid message from device: %s!", mDeviceTag), e);
+            }
+        });
+
+        // The client offers, acks and cancels file transfers.
+        mFileTransfers.registerCommandHandlers(mCommandRegistry);
+        mClipboardSync.registerCommandHandlers(mCommandRegistry);
+    }
+
+    /**
+     * Parses the JSON argument of a command the syncer is waiting on. Returns null if no sync
+     * is running, or if the argument couldn't be parsed, in which case the sync is stopped.
+     */
+    private <T> T parseSyncArgument(CommandRegistry.Command command, Type type) {
+        if (mSyncer == null) {
+            return null;
+        }
+
+        try {
+            return JsonCodec.getGson().fromJson(command.getArgumentReader(), type);
+        } catch (JsonParseException e) {
+            Log.e(TAG, String.format("parseSyncArgument: " +
+                    "Error receiving %s for device: %s!", command.getName(), mDeviceTag), e);
+            mSyncer.interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Offers the client this build's protocol version and capabilities, then waits briefly for
+     * its hello before anything else is sent. Any other command that arrives in the meantime is
+     * handled as usual. If no hello arrives in time, the client is treated as an old one.
+     */
+    private void performHandshake() {
+        sendCommand(Channel.CONTROL, String.format("server_hello: %d %d",
+                Capabilities.PROTOCOL_VERSION, Capabilities.SUPPORTED));
+
+        long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+        try {
+            while (!mHandshakeComplete || mAwaitingKeyExchange) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                Frame frame = mSocketReader.getFrameQueue().poll(remaining, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    break;
+                } else if (frame == SocketReader.END_OF_STREAM) {
+                    interrupt();
+                    return;
                 }
-            } catch (Exception e) {
-                Log.e(TAG, String.format("handleCommand: " +
-                                "Error receiving call id's for device: %s!",
-                        mDeviceTag), e);
-                mSyncer.interrupt();
+
+                handleFrame(frame);
             }
+        } catch (InterruptedException e) {
+            interrupt();
+            return;
+        }
 
-        // If the client sends a clipboard.
-        } else if (clientCommand.contains("incoming_clipboard:")) {
-            System.out.println(clientCommand);
+        if (!mHandshakeComplete && hasPairingKey()) {
+            // A PC that was keyed before always encrypts, so a missing hello means someone
+            // else is answering, or trying to get the phone to send in the clear.
+            Log.e(TAG, String.format("performHandshake: " +
+                    "No hello from keyed device: %s, disconnecting!", mDeviceTag));
+            sendCommand(Channel.CONTROL, "key_exchange_failed: pairing");
+            interrupt();
+            return;
+        } else if (!mHandshakeComplete) {
+            Log.d(TAG, String.format("performHandshake: " +
+                    "No hello from device: %s, using legacy commands!", mDeviceTag));
+        } else if (mAwaitingKeyExchange) {
+            // The client asked for encryption, so don't fall back to sending in the clear.
+            Log.e(TAG, String.format("performHandshake: " +
+                    "No key exchange from device: %s, disconnecting!", mDeviceTag));
+            interrupt();
+            return;
+        }
+        mHandshakeSettled = true;
+    }
 
-            ClipboardManager clipboard = (ClipboardManager)
-                    mContext.getSystemService(Context.CLIPBOARD_SERVICE);
-            String clip_text = clientCommand.split(": ")[1];
-            ClipData clip = ClipData.newPlainText("simple_text", clip_text);
-            clipboard.setPrimaryClip(clip);
+    /**
+     * Enables flow control, which resends any frames the client missed. While the key
+     * exchange is pending, the request is held until the frames are sealed.
+     */
+    private void applyFlowControl(int window, int resumeFrom) {
+        if (mAwaitingKeyExchange) {
+            Log.d(TAG, String.format("applyFlowControl: " +
+                    "Deferring flow control for device: %s until the key exchange!", mDeviceTag));
+            mPendingFlowWindow = window;
+            mPendingResumeFrom = resumeFrom;
+            return;
+        }
+        mSocketWriter.enableFlowControl(window, resumeFrom);
+    }
 
-        // If the client requests a sync.
-        } else if (clientCommand.contains("do_sync")) {
-            startSync(Syncer.SYNC_ALL);
+    /** Returns whether the PC was keyed by an earlier encrypted connection. See KeyExchange. */
+    private boolean hasPairingKey() {
+        PairedPC pairedPC = Utils.getPairedPC(mDevice.getAddress());
+        return pairedPC != null && pairedPC.getPairingKey() != null;
+    }
 
-        // If the client tries to send a message.
-        } else if (clientCommand.contains("send_sms")) {
-            Gson gson = new Gson();
-            String jsonString = clientCommand.split(":: ")[1];
-            HashMap<String, String> command_data = gson.fromJson(jsonString,
-                    new TypeToken<HashMap<String, String>>() {}.getType());
+    /**
+     * Returns whether notifications, clipboard contents and sync records may be sent: once the
+     * handshake is over, and the frames are sealed if the client agreed to ENCRYPTION.
+     */
+    private boolean isReadyForData() {
+        return mHandshakeSettled && !mAwaitingKeyExchange;
+    }
 
-            SmsManager smsManager = SmsManager.getDefault();
-            smsManager.sendTextMessage(command_data.get("number"),
-                    null, command_data.get("message"),
-                    null, null);
+    /**
+     * Starts the services that send the user's data on their own, once the frames are sealed
+     * or the client didn't ask for encryption.
+     */
+    private void startDataServices() {
+        // Pick up any files that were still being sent when the last connection dropped.
+        if (hasCapability(Capabilities.FILE_TRANSFER)) {
+            mFileTransfers.resumePending();
+        }
+        if (hasCapability(Capabilities.CLIPBOARD_SYNC)) {
+            mClipboardSync.start();
         }
+    }
 
+    /**
+     * Handles the client's hello by agreeing on the highest common protocol version and the
+     * capabilities both sides support, then turns on the ones that need no further setup.
+     */
+    private void handleClientHello(String clientHello) {
+        String[] args = clientHello.trim().split(" ");
+        if (args.length != 2) {
+            Log.w(TAG, String.format("handleClientHello: " +
+                    "Invalid hello from device: %s!", mDeviceTag));
+            return;
+        }
 
+        int clientVersion;
+        int clientCapabilities;
+        try {
+            clientVersion = Integer.parseInt(args[0]);
+            clientCapabilities = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, String.format("handleClientHello: " +
+                    "Invalid hello from device: %s!", mDeviceTag));
+            return;
+        }
+
+        // A hello sent as plain text means the client can't read frames yet.
+        if (!mSocketReader.isPeerFraming()) {
+            clientCapabilities &= ~Capabilities.FRAMING;
+        }
 
+        // The capabilities aren't authenticated, so a keyed PC that doesn't ask for
+        // encryption may have had it stripped on the way. Never send to it in the clear.
+        if ((Capabilities.negotiate(clientCapabilities) & Capabilities.ENCRYPTION) == 0 &&
+                hasPairingKey()) {
+            Log.e(TAG, String.format("handleClientHello: " +
+                    "Keyed device: %s didn't ask for encryption, disconnecting!", mDeviceTag));
+            sendCommand(Channel.CONTROL, "key_exchange_failed: pairing");
+            interrupt();
+            return;
+        }
+
+        mProtocolVersion = Math.min(clientVersion, Capabilities.PROTOCOL_VERSION);
+        mCapabilities = Capabilities.negotiate(clientCapabilities);
+        mAwaitingKeyExchange = hasCapability(Capabilities.ENCRYPTION);
+        mHandshakeComplete = true;
+
+        if (hasCapability(Capabilities.COMPRESSION)) {
+            mSocketWriter.setCompressionEnabled(true);
+        }
+        if (hasCapability(Capabilities.CHANNELS)) {
+            mSocketWriter.setChannelsEnabled(true);
+        }
+
+        sendCommand(Channel.CONTROL,
+                String.format("hello_complete: %d %d", mProtocolVersion, mCapabilities));
+
+        Log.d(TAG, String.format("handleClientHello: " +
+                        "Using protocol version %d with device: %s, capabilities: %s!",
+                mProtocolVersion, mDeviceTag, Capabilities.describe(mCapabilities)));
+
+        // With encryption, these wait for the key exchange. See handleKeyExchange.
+        if (!mAwaitingKeyExchange) {
+            startDataServices();
+        }
     }
 
-    /** Sends a heartbeat to the client at a defined interval to track connection status. */
-    public void sendHeartbeat() {
-        // Timing between heartbeats.
-        final int SEND_HEARTBEAT_TIMING = 5000;
+    /**
+     * Handles the client's "key_exchange: <public key> <pairing key fingerprint>" by deriving
+     * the connection's keys with a KeyExchange and sealing every frame after the reply. A PC
+     * that was keyed before must prove it still has the same pairing key, otherwise the
+     * connection is dropped rather than keyed by whoever answered.
+     */
+    private void handleKeyExchange(String keyExchange) {
+        String[] args = keyExchange.trim().split(" ");
+        if (!mAwaitingKeyExchange || args.length != 2) {
+            Log.w(TAG, String.format("handleKeyExchange: " +
+                    "Ignoring unexpected key exchange from device: %s!", mDeviceTag));
+            return;
+        }
+
+        PairedPC pairedPC = Utils.getPairedPC(mDevice.getAddress());
+        byte[] pairingKey = pairedPC != null ? pairedPC.getPairingKey() : null;
+        String fingerprint = KeyExchange.fingerprint(pairingKey);
+        if (pairingKey != null && !fingerprint.equals(args[1])) {
+            Log.e(TAG, String.format("handleKeyExchange: " +
+                    "Pairing key mismatch for device: %s, it has to be paired again!",
+                    mDeviceTag));
+            sendCommand(Channel.CONTROL, "key_exchange_failed: pairing");
+            interrupt();
+            return;
+        }
+
+        try {
+            KeyExchange exchange = new KeyExchange();
+            exchange.derive(args[0], pairingKey);
 
-        if (mLastServerHeartBeat == -1 ||
-                System.currentTimeMillis() - mLastServerHeartBeat > SEND_HEARTBEAT_TIMING) {
-            if (!sendCommand(mBluetoothSocket, "server_heartbeat")) {
-                interrupt();
+            mSocketReader.setFrameOpener(FrameSealer.forOpening(exchange.getReceiveKey()));
+            mSocketWriter.enableSealing(Frame.command(String.format("key_exchange: %s %s",
+                    exchange.getPublicKey(), fingerprint)),
+                    FrameSealer.forSealing(exchange.getSendKey()));
+
+            if (pairingKey == null && pairedPC != null) {
+                Utils.setPCPairingKey(mDevice.getAddress(), exchange.getPairingKey());
             }
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, String.format("handleKeyExchange: " +
+                    "Key exchange failed for device: %s!", mDeviceTag), e);
+            sendCommand(Channel.CONTROL, "key_exchange_failed: error");
+            interrupt();
+            return;
+        }
 
-            mLastServerHeartBeat = System.currentTimeMillis();
+        mAwaitingKeyExchange = false;
+        Log.d(TAG, String.format("handleKeyExchange: " +
+                "Frames to and from device: %s are now sealed!", mDeviceTag));
+
+        // Queued behind the reply above, so the resent frames are sealed.
+        if (mPendingFlowWindow != -1) {
+            mSocketWriter.enableFlowControl(mPendingFlowWindow, mPendingResumeFrom);
+            mPendingFlowWindow = -1;
         }
+
+        startDataServices();
+    }
+
+    /** Returns whether the client agreed to use a capability during the handshake. */
+    public boolean hasCapability(int capability) {
+        return (mCapabilities & capability) != 0;
+    }
+
+    public int getProtocolVersion() {
+        return mProtocolVersion;
     }
 
     /**
-     * Main function which manages the PC's connection. Handles client command
-     * and tracks the connection status using heartbeats
+     * Sends a heartbeat once nothing has been sent or received for the current heartbeat
+     * interval, so a busy connection never sends any. While the connection stays idle, each
+     * heartbeat doubles the interval for clients that completed the handshake.
+     */
+    public void sendHeartbeat() {
+        long now = System.currentTimeMillis();
+        if (now < getNextHeartbeatTime()) {
+            return;
+        }
+
+        if (mHandshakeComplete && mLastServerHeartBeat != -1 &&
+                mLastTrafficTime < mLastServerHeartBeat) {
+            mHeartbeatInterval = Math.min(mHeartbeatInterval * 2, MAX_HEARTBEAT_INTERVAL);
+        } else {
+            mHeartbeatInterval = MIN_HEARTBEAT_INTERVAL;
+        }
+
+        // Heartbeats bypass sendFrame so that they don't count as traffic.
+        if (!mSocketWriter.send(Frame.command(Channel.CONTROL, "server_heartbeat"))) {
+            interrupt();
+        }
+
+        mLastServerHeartBeat = now;
+    }
+
+    /** Returns when the next heartbeat is due if the connection stays idle. */
+    private long getNextHeartbeatTime() {
+        long lastActivity = Math.max(mSocketReader.getLastReadTime(),
+                mSocketWriter.getLastWriteTime());
+        return lastActivity + mHeartbeatInterval;
+    }
+
+    /**
+     * Returns whether the client has stopped answering, meaning a heartbeat went out more
+     * than HEARTBEAT_TIMEOUT ago and nothing has been read since.
+     */
+    private boolean isClientUnresponsive() {
+        return mLastServerHeartBeat != -1 &&
+                mSocketReader.getLastReadTime() < mLastServerHeartBeat &&
+                System.currentTimeMillis() - mLastServerHeartBeat > HEARTBEAT_TIMEOUT;
+    }
+
+    /** Returns when the next sync is due, or -1 if one is due now. */
+    private long getNextSyncTime() {
+        Date lastSync = Objects.requireNonNull(
+                Utils.getPairedPC(mDevice.getAddress())).getLastSync();
+        if (lastSync == null) {
+            return -1;
+        }
+        return lastSync.getTime() + SYNC_INTERVAL;
+    }
+
+    /**
+     * Main function which manages the PC's connection. Handles client commands as they arrive,
+     * and otherwise sleeps until the next heartbeat or sync is due. A closed socket is noticed
+     * by the reader, and a client that stops answering heartbeats times out.
      */
     private void manageConnectedSyncSocket() {
-        String incomingCommands = receiveCommand();
-        if (incomingCommands != null) {
-            String[] clientCommands = incomingCommands.split(Utils.COMMAND_DELIMITER);
-            for (String clientCommand : clientCommands) {
-
-                // If a command was successfully retrieved, handle it.
-                // Otherwise, assume the socket was closed stop the thread.
-                if (!clientCommand.equals("Receive Failure")) {
-                    handleCommand(clientCommand);
-                } else {
+        long wakeupTime = getNextHeartbeatTime();
+        if (mSyncer == null || !mSyncer.isAlive()) {
+            wakeupTime = Math.min(wakeupTime, getNextSyncTime());
+        }
+        if (mLastServerHeartBeat != -1 &&
+                mSocketReader.getLastReadTime() < mLastServerHeartBeat) {
+            wakeupTime = Math.min(wakeupTime, mLastServerHeartBeat + HEARTBEAT_TIMEOUT + 1);
+        }
+
+        // Block until a frame arrives or there is something else to do.
+        try {
+            long timeout = Math.max(wakeupTime - System.currentTimeMillis(), 1);
+            Frame frame = mSocketReader.getFrameQueue().poll(timeout, TimeUnit.MILLISECONDS);
+            mWakeups++;
+
+            while (frame != null) {
+                // If the socket can no longer be read from, assume it was closed and stop
+                // the thread.
+                if (frame == SocketReader.END_OF_STREAM) {
                     interrupt();
+                    return;
                 }
+
+                handleFrame(frame);
+                frame = mSocketReader.getFrameQueue().poll();
             }
+        } catch (InterruptedException e) {
+            interrupt();
+            return;
+        }
+
+        if (isClientUnresponsive()) {
+            Log.d(TAG, String.format("manageConnectedSyncSocket: " +
+                    "Device: %s stopped answering heartbeats!", mDeviceTag));
+            interrupt();
+            return;
         }
 
         // Check if a sync has not been done yet, or if the last sync time
         // is beyond the sync interval. If either is true, sync data with device.
-        final long syncInterval = 1000 * 120;
-        Date lastSync = Objects.requireNonNull(
-                Utils.getPairedPC(mDevice.getAddress())).getLastSync();
-        if (lastSync == null || System.currentTimeMillis() - lastSync.getTime() > syncInterval) {
+        if (System.currentTimeMillis() >= getNextSyncTime()) {
             if (mSyncer == null || !mSyncer.isAlive()) {
-                startSync(Syncer.SYNC_ALL);
+                startSync(Syncer.SYNC_ALL, false);
             }
         }
 
         sendHeartbeat();
-
-        // Sleep the thread so it isn't draining the phone's resources.
-        SystemClock.sleep(500);
     }
 
     public int getNotificationID() {
         return mNotificationID;
     }
 
+    public BluetoothSocket getBluetoothSocket() {
+        return mBluetoothSocket;
+    }
+
+    /**
+     * Returns the estimator measuring the link bulk traffic goes over, which is the local
+     * network while it is connected.
+     */
+    public LinkEstimator getLinkEstimator() {
+        LanTransport lanTransport = getLanTransport();
+        LinkEstimator linkEstimator = lanTransport != null ?
+                lanTransport.getLinkEstimator() : null;
+        return linkEstimator != null ? linkEstimator : mSocketWriter.getLinkEstimator();
+    }
+
     public String getDeviceAddress() {
         return mDevice.getAddress();
     }
@@ -0,0 +1,43 @@
+package sync.synchrony.Synchrony;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Keeps a small pool of fixed size byte buffers so that socket threads can reuse them instead
+ * of allocating a new array for every read or write.
+ */
+public class BufferPool {
+    private final int mBufferSize;
+    private final boolean mDirect;
+    private final ArrayBlockingQueue<ByteBuffer> mBuffers;
+
+    public BufferPool(int bufferSize, int maxPooledBuffers, boolean direct) {
+        this.mBufferSize = bufferSize;
+        this.mDirect = direct;
+        this.mBuffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+    }
+
+    /** Returns a cleared buffer from the pool, allocating a new one if the pool is empty. */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = mBuffers.poll();
+        if (buffer == null) {
+            buffer = mDirect ? ByteBuffer.allocateDirect(mBufferSize)
+                    : ByteBuffer.allocate(mBufferSize);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer to the pool. Buffers are dropped if the pool is already full. */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == mBufferSize && buffer.isDirect() == mDirect) {
+            mBuffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+}
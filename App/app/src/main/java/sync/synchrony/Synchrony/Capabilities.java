@@ -0,0 +1,89 @@
+package sync.synchrony.Synchrony;
+
+import java.util.ArrayList;
+
+/**
+ * Protocol version and capability bits exchanged with the client when a connection starts.
+ *
+ * The phone opens with "server_hello: <version> <capabilities>" as a plain text command, which
+ * old clients simply ignore. A newer client answers with a framed
+ * "client_hello: <version> <capabilities>", and the connection then uses whatever both sides
+ * support. If no hello comes back in time, the connection keeps to the old text commands.
+ */
+public class Capabilities {
+    // Protocol version spoken by this build. Old clients that never send a hello are treated
+    // as LEGACY_VERSION.
+    public static final int PROTOCOL_VERSION = 1;
+    public static final int LEGACY_VERSION = 0;
+
+    // Capability bits.
+    // Length-prefixed binary frames instead of delimited text. See Frame.
+    public static final int FRAMING = 1;
+    // Large frames are compressed with deflate. See FrameCompressor.
+    public static final int COMPRESSION = 1 << 1;
+    // Sequenced frames with acks and a credit window. See FlowControl.
+    public static final int FLOW_CONTROL = 1 << 2;
+    // Sync records are sent with RecordCodec instead of JSON.
+    public static final int BINARY_CODEC = 1 << 3;
+    // Several sync records may be sent in a single frame, sized by the LinkEstimator. Only used
+    // along with BINARY_CODEC. See RecordCodec.
+    public static final int BATCHING = 1 << 4;
+    // Contact photos are only sent once the client asks for them.
+    public static final int LAZY_PHOTOS = 1 << 5;
+    // Frames carry a channel id and large payloads are fragmented. See Channel.
+    public static final int CHANNELS = 1 << 6;
+    // The client's hashes and ids are requested together with a single "check_manifest".
+    public static final int MANIFEST = 1 << 7;
+    // Files are sent over the sync socket. See FileTransferManager.
+    public static final int FILE_TRANSFER = 1 << 8;
+    // Clipboard changes are sent automatically in both directions. See ClipboardSync.
+    public static final int CLIPBOARD_SYNC = 1 << 9;
+    // Frames are sealed with AES-GCM after a key exchange. See FrameSealer and KeyExchange.
+    public static final int ENCRYPTION = 1 << 10;
+    // Bulk traffic moves to a TCP socket on the local network. Needs CHANNELS. See
+    // LanTransport.
+    public static final int LAN_TRANSPORT = 1 << 11;
+    // The client answers each "<kind>_sync_complete" with "sync_received: <kind>_sync_complete"
+    // once it has stored the section, on whichever socket the section came over. See Syncer.
+    public static final int SYNC_RECEIPTS = 1 << 12;
+
+    // Capabilities this build of the app supports.
+    public static final int SUPPORTED = FRAMING | COMPRESSION | FLOW_CONTROL | BINARY_CODEC |
+            BATCHING | CHANNELS | MANIFEST | FILE_TRANSFER | CLIPBOARD_SYNC |
+            ENCRYPTION | LAN_TRANSPORT | SYNC_RECEIPTS;
+
+    // Names used when logging a capability set, in bit order.
+    private static final String[] sNames = {
+            "framing", "compression", "flow_control", "binary_codec", "batching", "lazy_photos",
+            "channels", "manifest", "file_transfer", "clipboard_sync",
+            "encryption", "lan_transport", "sync_receipts"};
+
+    private Capabilities() {}
+
+    /**
+     * Returns the capabilities both sides can use, given the ones the client offered. Nothing
+     * beyond the old text commands can be used unless the client also speaks frames.
+     */
+    public static int negotiate(int clientCapabilities) {
+        int capabilities = clientCapabilities & SUPPORTED;
+        if ((capabilities & FRAMING) == 0) {
+            return 0;
+        }
+        // Bulk traffic is told apart by its channel.
+        if ((capabilities & CHANNELS) == 0) {
+            capabilities &= ~LAN_TRANSPORT;
+        }
+        return capabilities;
+    }
+
+    /** Returns a readable list of the capabilities in a set, for logging. */
+    public static String describe(int capabilities) {
+        ArrayList<String> names = new ArrayList<>();
+        for (int bit = 0; bit < sNames.length; bit++) {
+            if ((capabilities & (1 << bit)) != 0) {
+                names.add(sNames[bit]);
+            }
+        }
+        return names.isEmpty() ? "none" : String.join(", ", names);
+    }
+}
@@ -0,0 +1,44 @@
+package sync.synchrony.Synchrony;
+
+/**
+ * Logical channels multiplexed over a single sync socket. Each subsystem sends on its own
+ * channel, and every channel is queued in the OutboundQueue lane that matches how urgent it is.
+ *
+ * Once the client agrees to the CHANNELS capability, large payloads are split into fragments
+ * that are written one at a time, so frames from other channels are written between them
+ * instead of waiting behind the whole payload. Fragments of one channel never interleave with
+ * each other, so each channel keeps its own order.
+ */
+public class Channel {
+    // Handshake, heartbeats and replies to the client's requests.
+    public static final byte CONTROL = 0;
+    // Sync records and the commands around them.
+    public static final byte SYNC = 1;
+    // Notifications mirrored from the phone.
+    public static final byte NOTIFICATIONS = 2;
+    // Clipboard contents in either direction.
+    public static final byte CLIPBOARD = 3;
+    // Text messages the client asks the phone to send.
+    public static final byte SMS = 4;
+    // Chunks of files being transferred in either direction.
+    public static final byte FILES = 5;
+
+    // OutboundQueue lane used by each channel, indexed by channel id.
+    private static final int[] sChannelPriorities = {
+            OutboundQueue.PRIORITY_INTERACTIVE,
+            OutboundQueue.PRIORITY_BULK,
+            OutboundQueue.PRIORITY_REALTIME,
+            OutboundQueue.PRIORITY_INTERACTIVE,
+            OutboundQueue.PRIORITY_INTERACTIVE,
+            OutboundQueue.PRIORITY_BULK};
+
+    private Channel() {}
+
+    /** Returns the OutboundQueue priority that frames on a channel are queued with. */
+    public static int priorityOf(byte channel) {
+        if (channel < 0 || channel >= sChannelPriorities.length) {
+            return OutboundQueue.PRIORITY_INTERACTIVE;
+        }
+        return sChannelPriorities[channel];
+    }
+}
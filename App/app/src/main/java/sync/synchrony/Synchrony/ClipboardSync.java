@@ -0,0 +1,460 @@
+package sync.synchrony.Synchrony;
+
+import android.content.ClipData;
+import android.content.ClipDescription;
+import android.content.ClipboardManager;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import androidx.core.content.FileProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.IntConsumer;
+
+/**
+ * Keeps the phone's clipboard in sync with the client's once the client agrees to the
+ * CLIPBOARD_SYNC capability. Every change to the primary clip is sent on its own, after a short
+ * debounce so that apps that set the clip several times in a row only send the last one.
+ *
+ * Short text goes out as a single "clipboard_text: <text>" command. Longer text and images are
+ * streamed as "clipboard_begin: <id> <mime type>", a run of TYPE_CLIPBOARD_CHUNK frames carrying
+ * [clip id (4 bytes)] [data], and "clipboard_end: <id>". Everything is sent on
+ * Channel.CLIPBOARD, so the chunks arrive in order and never hold up the sync behind them. The
+ * client sends clips back to the phone the same way.
+ *
+ * Each side remembers the hash of the last clip that crossed the link in either direction, so
+ * the same clip is never sent twice, and a clip received from the client isn't echoed back once
+ * it lands on the phone's clipboard.
+ *
+ * Android 10 and up only tells apps in the foreground about clipboard changes, so clips are
+ * mostly sent automatically while the app is open. Clips from the client are applied either way.
+ */
+public class ClipboardSync implements ClipboardManager.OnPrimaryClipChangedListener {
+    private static final String TAG = "ClipboardSync";
+    private final String mDeviceTag;
+
+    // How long the clipboard has to stay the same before its clip is sent.
+    private static final long DEBOUNCE_DELAY = 250;
+
+    // Longest text, in UTF-8 bytes, that is sent as a single command instead of being streamed.
+    private static final int INLINE_TEXT_LIMIT = 4 * 1024;
+
+    // Size of the clip id at the start of every chunk.
+    private static final int CHUNK_HEADER_SIZE = 4;
+
+    // Size of the clip data in each chunk, so that a chunk fits in one fragment.
+    private static final int CHUNK_SIZE = SocketWriter.FRAGMENT_SIZE - CHUNK_HEADER_SIZE;
+
+    // Largest clip sent or accepted. Anything bigger belongs in a file transfer.
+    private static final int MAX_CLIP_SIZE = 8 * 1024 * 1024;
+
+    // Directory under the cache that received images are kept in, shared through the app's
+    // FileProvider so that other apps can paste them.
+    private static final String CLIP_DIRECTORY = "clipboard";
+
+    private final Context mContext;
+    private final BluetoothConnectionThread mConnectionThread;
+    private final ClipboardManager mClipboardManager;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSendClipRunnable = this::sendPrimaryClip;
+
+    // Hash of the last clip that was sent to or received from the client.
+    private volatile String mLastClipHash = null;
+
+    // Streams the current clip to the client. Replaced whenever the clip changes again.
+    private Thread mSendThread = null;
+    private int mNextClipId = 1;
+
+    // Clip being received from the client. Only touched by the connection thread.
+    private IncomingClip mIncomingClip = null;
+
+    private boolean mStarted = false;
+
+    public ClipboardSync(Context context, BluetoothConnectionThread connectionThread,
+                         String deviceTag) {
+        this.mContext = context;
+        this.mConnectionThread = connectionThread;
+        this.mDeviceTag = deviceTag;
+        this.mClipboardManager = (ClipboardManager)
+                context.getSystemService(Context.CLIPBOARD_SERVICE);
+    }
+
+    /** Registers the handlers for the clipboard commands the client sends. */
+    public void registerCommandHandlers(CommandRegistry commandRegistry) {
+        commandRegistry.register("clipboard_text", command -> applyText(command.getArgument()));
+        commandRegistry.register("clipboard_begin", command -> {
+            String[] args = command.getArgument().trim().split(" ");
+            if (args.length != 2) {
+                Log.w(TAG, String.format("clipboard_begin: " +
+                        "Ignoring malformed clip from device: %s!", mDeviceTag));
+                return;
+            }
+            beginIncomingClip(args[0], args[1]);
+        });
+        commandRegistry.register("clipboard_end", command -> {
+            IncomingClip clip = mIncomingClip;
+            if (clip != null && clip.mId.equals(command.getArgument().trim())) {
+                mIncomingClip = null;
+                finishIncomingClip(clip);
+            }
+        });
+    }
+
+    /** Starts sending clipboard changes to the client. */
+    public synchronized void start() {
+        if (!mStarted) {
+            mStarted = true;
+            mClipboardManager.addPrimaryClipChangedListener(this);
+        }
+    }
+
+    /** Stops sending clipboard changes, and drops any clip still being sent or received. */
+    public synchronized void stop() {
+        if (mStarted) {
+            mStarted = false;
+            mClipboardManager.removePrimaryClipChangedListener(this);
+        }
+        mMainHandler.removeCallbacks(mSendClipRunnable);
+        if (mSendThread != null) {
+            mSendThread.interrupt();
+            mSendThread = null;
+        }
+
+        IncomingClip clip = mIncomingClip;
+        mIncomingClip = null;
+        if (clip != null) {
+            clip.discard();
+        }
+    }
+
+    @Override
+    public void onPrimaryClipChanged() {
+        mMainHandler.removeCallbacks(mSendClipRunnable);
+        mMainHandler.postDelayed(mSendClipRunnable, DEBOUNCE_DELAY);
+    }
+
+    /**
+     * Sends text the user chose to send, even if it matches the last clip. Used by the send
+     * clipboard button.
+     */
+    public void sendText(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        mLastClipHash = hash(bytes);
+        sendBytes(bytes, ClipDescription.MIMETYPE_TEXT_PLAIN);
+    }
+
+    /** Puts text from the client on the clipboard, remembering it so it isn't sent back. */
+    public void applyText(String text) {
+        mLastClipHash = hash(text.getBytes(StandardCharsets.UTF_8));
+        mClipboardManager.setPrimaryClip(ClipData.newPlainText("simple_text", text));
+    }
+
+    /** Handles a chunk of a clip from the client. Called on the connection thread. */
+    public void onChunk(Frame frame) {
+        IncomingClip clip = mIncomingClip;
+        if (clip == null || frame.getPayloadLength() < CHUNK_HEADER_SIZE ||
+                !clip.mId.equals(String.valueOf(
+                        Frame.readInt(frame.getPayload(), frame.getPayloadOffset())))) {
+            return;
+        }
+
+        try {
+            clip.write(frame.getPayload(), frame.getPayloadOffset() + CHUNK_HEADER_SIZE,
+                    frame.getPayloadLength() - CHUNK_HEADER_SIZE);
+        } catch (IOException e) {
+            Log.w(TAG, String.format("onChunk: " +
+                    "Dropping clip from device: %s: %s", mDeviceTag, e.getMessage()));
+            mIncomingClip = null;
+            clip.discard();
+        }
+    }
+
+    /** Reads the primary clip once the debounce has passed and sends it if it is new. */
+    private void sendPrimaryClip() {
+        ClipData clip = mClipboardManager.getPrimaryClip();
+        if (clip == null || clip.getItemCount() == 0) {
+            return;
+        }
+
+        ClipData.Item item = clip.getItemAt(0);
+        ClipDescription description = clip.getDescription();
+        String imageType = null;
+        for (int i = 0; i < description.getMimeTypeCount(); i++) {
+            if (description.getMimeType(i).startsWith("image/")) {
+                imageType = description.getMimeType(i);
+                break;
+            }
+        }
+
+        if (item.getUri() != null && imageType != null) {
+            // Images are read and hashed off the main thread.
+            String mimeType = imageType;
+            startSendThread(clipId -> sendImage(clipId, item.getUri(), mimeType));
+            return;
+        }
+
+        CharSequence text = item.coerceToText(mContext);
+        if (text == null || text.length() == 0) {
+            return;
+        }
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        String clipHash = hash(bytes);
+        if (clipHash.equals(mLastClipHash)) {
+            return;
+        }
+
+        mLastClipHash = clipHash;
+        sendBytes(bytes, ClipDescription.MIMETYPE_TEXT_PLAIN);
+        Log.d(TAG, String.format("sendPrimaryClip: " +
+                "Sent %d bytes of text to device: %s!", bytes.length, mDeviceTag));
+    }
+
+    /**
+     * Runs a send on a thread of its own, so that it can block on a full lane without holding
+     * up the main thread. Interrupts any clip that is still being sent, since it is stale now.
+     */
+    private synchronized void startSendThread(IntConsumer send) {
+        if (mSendThread != null) {
+            mSendThread.interrupt();
+        }
+
+        int clipId = mNextClipId++;
+        mSendThread = new Thread(() -> send.accept(clipId), "ClipboardSync " + mDeviceTag);
+        mSendThread.start();
+    }
+
+    /**
+     * Reads an image clip into memory, then streams it to the client unless it is the clip that
+     * last crossed the link. Runs on the send thread.
+     */
+    private void sendImage(int clipId, Uri uri, String mimeType) {
+        byte[] image;
+        try (InputStream inputStream = mContext.getContentResolver().openInputStream(uri)) {
+            if (inputStream == null) {
+                return;
+            }
+            image = readLimited(inputStream);
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, String.format("sendImage: " +
+                    "Couldn't read clip for device: %s: %s", mDeviceTag, e.getMessage()));
+            return;
+        }
+
+        if (image == null) {
+            Log.w(TAG, String.format("sendImage: " +
+                    "Clip is too large to send to device: %s!", mDeviceTag));
+            return;
+        }
+
+        String clipHash = hash(image);
+        if (clipHash.equals(mLastClipHash) || Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        mLastClipHash = clipHash;
+        streamClip(clipId, image, mimeType);
+
+        Log.d(TAG, String.format("sendImage: " +
+                "Sent %d byte %s clip to device: %s!", image.length, mimeType, mDeviceTag));
+    }
+
+    /** Sends a clip as a single command if it is short text, or streams it otherwise. */
+    private void sendBytes(byte[] bytes, String mimeType) {
+        if (mimeType.equals(ClipDescription.MIMETYPE_TEXT_PLAIN) &&
+                bytes.length <= INLINE_TEXT_LIMIT) {
+            mConnectionThread.sendCommand(Channel.CLIPBOARD,
+                    "clipboard_text: " + new String(bytes, StandardCharsets.UTF_8));
+            return;
+        }
+
+        startSendThread(clipId -> streamClip(clipId, bytes, mimeType));
+    }
+
+    private void streamClip(int clipId, byte[] bytes, String mimeType) {
+        if (bytes.length > MAX_CLIP_SIZE) {
+            Log.w(TAG, String.format("streamClip: " +
+                    "Clip is too large to send to device: %s!", mDeviceTag));
+            return;
+        }
+
+        if (!mConnectionThread.sendCommand(Channel.CLIPBOARD,
+                String.format("clipboard_begin: %d %s", clipId, mimeType))) {
+            return;
+        }
+
+        for (int offset = 0; offset < bytes.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, bytes.length - offset);
+            byte[] payload = new byte[CHUNK_HEADER_SIZE + length];
+            Frame.writeInt(payload, 0, clipId);
+            System.arraycopy(bytes, offset, payload, CHUNK_HEADER_SIZE, length);
+
+            // The client drops a clip that is never ended, so a newer clip can simply cut in.
+            if (Thread.currentThread().isInterrupted() ||
+                    !mConnectionThread.sendFrame(new Frame(Frame.TYPE_CLIPBOARD_CHUNK, (byte) 0,
+                            0, Channel.CLIPBOARD, payload))) {
+                return;
+            }
+        }
+
+        mConnectionThread.sendCommand(Channel.CLIPBOARD, "clipboard_end: " + clipId);
+    }
+
+    /** Starts receiving a clip, dropping any earlier one that never ended. */
+    private void beginIncomingClip(String id, String mimeType) {
+        if (mIncomingClip != null) {
+            mIncomingClip.discard();
+            mIncomingClip = null;
+        }
+
+        try {
+            mIncomingClip = new IncomingClip(id, mimeType);
+        } catch (IOException e) {
+            Log.w(TAG, String.format("beginIncomingClip: " +
+                    "Couldn't receive clip from device: %s!", mDeviceTag), e);
+        }
+    }
+
+    /** Puts a fully received clip on the clipboard. */
+    private void finishIncomingClip(IncomingClip clip) {
+        String clipHash = clip.finish();
+        mLastClipHash = clipHash;
+
+        if (clip.mFile == null) {
+            mClipboardManager.setPrimaryClip(ClipData.newPlainText("simple_text",
+                    new String(clip.mBuffer.toByteArray(), StandardCharsets.UTF_8)));
+        } else {
+            Uri uri = FileProvider.getUriForFile(mContext,
+                    mContext.getPackageName() + ".fileprovider", clip.mFile);
+            mClipboardManager.setPrimaryClip(ClipData.newUri(mContext.getContentResolver(),
+                    "image", uri));
+        }
+
+        Log.d(TAG, String.format("finishIncomingClip: " +
+                "Received %d byte %s clip from device: %s!", clip.mSize, clip.mMimeType,
+                mDeviceTag));
+    }
+
+    /** Reads a whole stream, or returns null if it is larger than MAX_CLIP_SIZE. */
+    private static byte[] readLimited(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            if (outputStream.size() + read > MAX_CLIP_SIZE) {
+                return null;
+            }
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android version has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hash(byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A clip being received. Text is kept in memory, while images are written to a file in
+     * the clipboard directory as they arrive.
+     */
+    private class IncomingClip {
+        private final String mId;
+        private final String mMimeType;
+        private final MessageDigest mDigest = newDigest();
+        private final ByteArrayOutputStream mBuffer;
+        private final File mFile;
+        private final OutputStream mOutput;
+        private int mSize = 0;
+
+        IncomingClip(String id, String mimeType) throws IOException {
+            this.mId = id;
+            this.mMimeType = mimeType;
+
+            if (mimeType.startsWith("image/")) {
+                File directory = new File(mContext.getCacheDir(), CLIP_DIRECTORY);
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Couldn't create " + directory);
+                }
+                deleteOldClips(directory);
+
+                String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+                this.mFile = new File(directory, String.format("clip-%d.%s",
+                        System.currentTimeMillis(), extension != null ? extension : "png"));
+                this.mBuffer = null;
+                this.mOutput = new FileOutputStream(mFile);
+            } else {
+                this.mFile = null;
+                this.mBuffer = new ByteArrayOutputStream();
+                this.mOutput = mBuffer;
+            }
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            mSize += length;
+            if (mSize > MAX_CLIP_SIZE) {
+                throw new IOException("Clip is too large!");
+            }
+            mDigest.update(data, offset, length);
+            mOutput.write(data, offset, length);
+        }
+
+        /** Closes the clip and returns its hash. */
+        String finish() {
+            close();
+            return toHex(mDigest.digest());
+        }
+
+        void discard() {
+            close();
+            if (mFile != null && !mFile.delete()) {
+                Log.w(TAG, "discard: Couldn't delete " + mFile);
+            }
+        }
+
+        private void close() {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close: Couldn't close clip " + mId, e);
+            }
+        }
+
+        /** Deletes images received earlier, since only the latest can still be on the clipboard. */
+        private void deleteOldClips(File directory) {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package sync.synchrony.Synchrony;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the name of each command a client can send to the handler for it. A command is
+ * "<name>: <argument>" or just "<name>". The name is parsed once from the start of the payload
+ * and looked up directly, and the handler gets the argument as a slice of the payload, so a
+ * command's argument is never scanned for other command names.
+ *
+ * The time spent in each handler is recorded so that slow commands show up in the logs.
+ */
+public class CommandRegistry {
+    private static final String TAG = "CommandRegistry";
+    private final String mDeviceTag;
+
+    private final HashMap<String, Handler> mHandlers = new HashMap<>();
+    private final HashMap<String, CommandStats> mStats = new HashMap<>();
+
+    public CommandRegistry(String deviceTag) {
+        this.mDeviceTag = deviceTag;
+    }
+
+    /** Registers the handler for a command name, replacing any previous one. */
+    public void register(String name, Handler handler) {
+        mHandlers.put(name, handler);
+    }
+
+    /**
+     * Parses a command payload and passes it to the handler registered for its name. Returns
+     * false if no handler is registered for it.
+     */
+    public boolean dispatch(byte[] payload) {
+        Command command = Command.parse(payload);
+
+        Handler handler = mHandlers.get(command.getName());
+        if (handler == null) {
+            Log.w(TAG, String.format("dispatch: " +
+                    "Ignoring unknown command from device: %s: %s!", mDeviceTag,
+                    command.getName()));
+            return false;
+        }
+
+        long start = System.nanoTime();
+        handler.handle(command);
+        long elapsedNanos = System.nanoTime() - start;
+
+        CommandStats stats = mStats.get(command.getName());
+        if (stats == null) {
+            stats = new CommandStats();
+            mStats.put(command.getName(), stats);
+        }
+        stats.mCount++;
+        stats.mTotalNanos += elapsedNanos;
+
+        Log.d(TAG, String.format("dispatch: " +
+                        "Handled %s (%d bytes) from device: %s in %d us!",
+                command.getName(), payload.length, mDeviceTag, elapsedNanos / 1000));
+        return true;
+    }
+
+    /** Logs how often each command was handled and how long it took on average. */
+    public void logStats() {
+        for (Map.Entry<String, CommandStats> entry : mStats.entrySet()) {
+            CommandStats stats = entry.getValue();
+            Log.d(TAG, String.format("logStats: " +
+                            "%s handled %d times for device: %s, averaging %d us!",
+                    entry.getKey(), stats.mCount, mDeviceTag,
+                    stats.mTotalNanos / stats.mCount / 1000));
+        }
+    }
+
+    /** Handles one kind of command. */
+    public interface Handler {
+        void handle(Command command);
+    }
+
+    /** A parsed command: its name, and its argument as a slice of the payload it came in. */
+    public static class Command {
+        private final String mName;
+        private final byte[] mPayload;
+        private final int mArgumentOffset;
+
+        private Command(String name, byte[] payload, int argumentOffset) {
+            this.mName = name;
+            this.mPayload = payload;
+            this.mArgumentOffset = argumentOffset;
+        }
+
+        /**
+         * Splits a payload into a name and argument. The name ends at the first ':', and the
+         * argument starts after any further ':' and a single space, so both "name: argument"
+         * and "name:: argument" work.
+         */
+        static Command parse(byte[] payload) {
+            int nameEnd = 0;
+            while (nameEnd < payload.length && payload[nameEnd] != ':') {
+                nameEnd++;
+            }
+
+            int argumentOffset = nameEnd;
+            while (argumentOffset < payload.length && payload[argumentOffset] == ':') {
+                argumentOffset++;
+            }
+            if (argumentOffset < payload.length && payload[argumentOffset] == ' ') {
+                argumentOffset++;
+            }
+
+            String name = new String(payload, 0, nameEnd, StandardCharsets.UTF_8).trim();
+            return new Command(name, payload, argumentOffset);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /** Returns the length of the argument in bytes. */
+        public int getArgumentLength() {
+            return mPayload.length - mArgumentOffset;
+        }
+
+        /** Returns the argument decoded as text. */
+        public String getArgument() {
+            return new String(mPayload, mArgumentOffset, getArgumentLength(),
+                    StandardCharsets.UTF_8);
+        }
+
+        /** Returns a reader over the argument, for parsing it without copying it to a String. */
+        public Reader getArgumentReader() {
+            return new InputStreamReader(new ByteArrayInputStream(
+                    mPayload, mArgumentOffset, getArgumentLength()), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class CommandStats {
+        private int mCount = 0;
+        private long mTotalNanos = 0;
+    }
+}
@@ -0,0 +1,154 @@
+package sync.synchrony.Synchrony;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Shares encoded payloads between connections, so that a record or event sent to several PCs
+ * is only encoded once. Payloads are keyed by the kind of payload, such as the command or
+ * codec used, and a fingerprint of its content, and the same bytes are then queued on every
+ * socket. Compression and sealing still happen per connection, on each writer thread.
+ *
+ * The cache only kicks in while more than one PC is connected. With a single PC, frames stay
+ * lazy and are encoded straight into the writer's buffer as before, so there is no extra copy.
+ * While fanning out, payloads are encoded on the thread that queues them rather than on the
+ * writer thread, so that the next connection to send the same thing finds it already encoded.
+ *
+ * Cached payloads are shared by every frame made from them and must never be modified.
+ */
+public class EncodedFrameCache {
+    private static final String TAG = "EncodedFrameCache";
+
+    // Total size of the payloads kept, least recently used ones being dropped first.
+    private static final int MAX_CACHED_BYTES = 2 * 1024 * 1024;
+
+    // Payloads larger than this are still encoded once per call, but aren't kept.
+    private static final int MAX_ENTRY_SIZE = 64 * 1024;
+
+    // Guarded by itself.
+    private static final LinkedHashMap<Key, byte[]> sEntries =
+            new LinkedHashMap<>(64, 0.75f, true);
+    private static int sCachedBytes = 0;
+    private static long sHits = 0;
+    private static long sMisses = 0;
+
+    // Payloads are encoded into a buffer of the queueing thread's own while fanning out.
+    private static final ThreadLocal<PayloadBuffer> sEncodeBuffer =
+            ThreadLocal.withInitial(PayloadBuffer::new);
+
+    private EncodedFrameCache() {}
+
+    /**
+     * Returns a frame for a payload identified by kind and fingerprint. If another connection
+     * already encoded the same payload, its bytes are reused, otherwise encoder encodes it.
+     * The fingerprint must change whenever anything the encoder writes does.
+     */
+    public static Frame frame(byte type, byte channel, String kind, Object fingerprint,
+                              Frame.PayloadEncoder encoder) {
+        if (!isFanningOut()) {
+            return Frame.lazy(type, channel, encoder);
+        }
+
+        byte[] payload;
+        try {
+            payload = payload(kind, fingerprint, encoder);
+        } catch (IOException | RuntimeException e) {
+            // Leave it to the writer, which drops and logs frames that can't be encoded.
+            return Frame.lazy(type, channel, encoder);
+        }
+        return new Frame(type, (byte) 0, 0, channel, payload);
+    }
+
+    /**
+     * Returns the encoded payload identified by kind and fingerprint, encoding it with encoder
+     * if no connection has yet. Used to build payloads out of several cached ones, such as
+     * record batches.
+     */
+    public static byte[] payload(String kind, Object fingerprint, Frame.PayloadEncoder encoder)
+            throws IOException {
+        Key key = new Key(kind, fingerprint);
+        synchronized (sEntries) {
+            byte[] payload = sEntries.get(key);
+            if (payload != null) {
+                sHits++;
+                return payload;
+            }
+            sMisses++;
+        }
+
+        PayloadBuffer buffer = sEncodeBuffer.get();
+        buffer.reset();
+        encoder.encode(buffer);
+
+        byte[] payload = buffer.toByteArray();
+        if (payload.length <= MAX_ENTRY_SIZE) {
+            put(key, payload);
+        }
+        return payload;
+    }
+
+    /** Logs how often payloads were reused, for comparing CPU use across connection counts. */
+    public static void logStats() {
+        synchronized (sEntries) {
+            Log.d(TAG, String.format("logStats: " +
+                            "%d hits, %d misses, %d payloads (%d bytes) cached!",
+                    sHits, sMisses, sEntries.size(), sCachedBytes));
+        }
+    }
+
+    private static void put(Key key, byte[] payload) {
+        synchronized (sEntries) {
+            byte[] previous = sEntries.put(key, payload);
+            if (previous != null) {
+                sCachedBytes -= previous.length;
+            }
+            sCachedBytes += payload.length;
+
+            Iterator<Map.Entry<Key, byte[]>> iterator = sEntries.entrySet().iterator();
+            while (sCachedBytes > MAX_CACHED_BYTES && iterator.hasNext()) {
+                sCachedBytes -= iterator.next().getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /** Returns whether more than one PC is connected, which is when sharing pays off. */
+    public static boolean isFanningOut() {
+        int connected = 0;
+        for (PairedPC pairedPC : Utils.getPairedPCS()) {
+            if (pairedPC.isSyncSocketConnected() && ++connected > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Key {
+        private final String mKind;
+        private final Object mFingerprint;
+
+        Key(String kind, Object fingerprint) {
+            this.mKind = kind;
+            this.mFingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mKind.equals(key.mKind) && Objects.equals(mFingerprint, key.mFingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mKind, mFingerprint);
+        }
+    }
+}
@@ -0,0 +1,959 @@
+package sync.synchrony.Synchrony;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Sends and receives files over a connection's own sync socket, in both directions, once the
+ * client agrees to the FILE_TRANSFER capability.
+ *
+ * A transfer starts with "file_offer: <id> <size> <chunk size> <key> <name>" from the sender.
+ * The key identifies the transfer across connections, while the id is only used for the
+ * current one. The receiver answers "file_accept: <id> <window>" or "file_reject: <id>". The
+ * file is then sent as TYPE_FILE_CHUNK frames on Channel.FILES, each carrying
+ * [transfer id (4 bytes)] [chunk index (4 bytes)] [CRC32 of the data (4 bytes)] [data]. The
+ * sender keeps at most a window of chunks unacked, and the receiver acks with
+ * "file_ack: <id> <chunks arrived>". Transfer ids belong to the side that sent the offer, so
+ * both sides number their transfers independently, and the same id can be in use in both
+ * directions at once. Giving up therefore says which side's transfer it is: the sender says
+ * "file_cancel_send: <id>", and the receiver says "file_cancel_receive: <id>".
+ *
+ * Once every chunk has been sent, the sender says "file_sent: <id>" on Channel.FILES, so that
+ * it goes over the same transport as the chunks and arrives after them. The receiver answers
+ * "file_complete: <id>" once it has every chunk, or else "file_status: <id> <chunks>" with a
+ * bitmap of the chunks it has, and the sender resends the rest. Chunks that fail their
+ * checksum are simply not marked as received.
+ *
+ * Both sides persist unfinished transfers in a TransferStore. When the connection drops, the
+ * receiver keeps its partial file, and on the next connection the sender asks for it back with
+ * "file_resume: <id> <key>". The receiver accepts with "file_accept: <id> <window> <chunks>"
+ * and only the missing chunks are sent again.
+ *
+ * Each outgoing file is read on its own thread, so several files can be sent at once. Incoming
+ * chunks are written on the connection thread as they arrive.
+ */
+public class FileTransferManager {
+    private static final String TAG = "FileTransferManager";
+    private final String mDeviceTag;
+
+    // Size of the transfer id, chunk index and checksum at the start of every chunk.
+    private static final int CHUNK_HEADER_SIZE = 12;
+
+    // Largest size of the file data in each chunk, chosen so that a whole chunk fits in one
+    // fragment and the writer never has to copy it apart. Slower links get smaller chunks, to
+    // match the fragments the writer picks for them. Offers carry the chunk size, so the
+    // receiver never assumes it.
+    public static final int CHUNK_SIZE = SocketWriter.FRAGMENT_SIZE - CHUNK_HEADER_SIZE;
+
+    // Number of chunks the client may have in flight when sending to the phone. Files sent to
+    // the client use the window it asks for instead.
+    public static final int DEFAULT_WINDOW = 16;
+
+    // Direct buffers that outgoing chunks are read into, shared by every transfer. A transfer
+    // never holds more than its window of them.
+    private static final BufferPool sChunkBufferPool = new BufferPool(CHUNK_SIZE, 32, true);
+
+    // How long a transfer may go without any progress before it is cancelled.
+    private static final long TRANSFER_TIMEOUT = 30 * 1000;
+
+    // How many times the sender goes over the chunks the receiver is missing before giving up.
+    private static final int MAX_SEND_ROUNDS = 5;
+
+    // How many chunks an incoming file may receive between saves of its progress.
+    private static final int SAVE_INTERVAL = 64;
+
+    // How often the connection's notification is updated while files are transferring.
+    private static final long PROGRESS_INTERVAL = 500;
+
+    private final Context mContext;
+    private final BluetoothConnectionThread mConnectionThread;
+    private final String mAddress;
+    private final int mWindow;
+    private final TransferStore mTransferStore;
+
+    private final AtomicInteger mNextTransferId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, OutgoingTransfer> mOutgoingTransfers =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, IncomingTransfer> mIncomingTransfers =
+            new ConcurrentHashMap<>();
+
+    // Checks incoming chunks. Only touched by the connection thread.
+    private final CRC32 mIncomingChecksum = new CRC32();
+
+    // When the connection's notification last showed transfer progress.
+    private long mLastProgressUpdate = 0;
+
+    public FileTransferManager(Context context, BluetoothConnectionThread connectionThread,
+                               String address, int window, String deviceTag) {
+        this.mContext = context;
+        this.mConnectionThread = connectionThread;
+        this.mAddress = address;
+        this.mWindow = window;
+        this.mDeviceTag = deviceTag;
+        this.mTransferStore = new TransferStore(context);
+        mTransferStore.deleteExpired();
+    }
+
+    /** Registers the handlers for the file commands the client sends. */
+    public void registerCommandHandlers(CommandRegistry commandRegistry) {
+        commandRegistry.register("file_offer", command -> handleOffer(command.getArgument()));
+        commandRegistry.register("file_resume", command -> handleResume(command.getArgument()));
+        commandRegistry.register("file_accept", command -> {
+            String[] args = command.getArgument().trim().split(" ");
+            OutgoingTransfer transfer = getOutgoingTransfer(args[0]);
+            if (transfer != null && args.length >= 2) {
+                transfer.onAccepted(parseInt(args[1], mWindow),
+                        decodeChunks(args.length == 3 ? args[2] : ""));
+            }
+        });
+        commandRegistry.register("file_reject", command -> {
+            OutgoingTransfer transfer = getOutgoingTransfer(command.getArgument().trim());
+            if (transfer != null) {
+                transfer.onRejected();
+            }
+        });
+        commandRegistry.register("file_ack", command -> {
+            String[] args = command.getArgument().trim().split(" ");
+            OutgoingTransfer transfer = getOutgoingTransfer(args[0]);
+            if (transfer != null && args.length == 2) {
+                transfer.onAck(parseInt(args[1], 0));
+            }
+        });
+        commandRegistry.register("file_status", command -> {
+            String[] args = command.getArgument().trim().split(" ");
+            OutgoingTransfer transfer = getOutgoingTransfer(args[0]);
+            if (transfer != null) {
+                transfer.onStatus(decodeChunks(args.length == 2 ? args[1] : ""));
+            }
+        });
+        commandRegistry.register("file_complete", command -> {
+            OutgoingTransfer transfer = getOutgoingTransfer(command.getArgument().trim());
+            if (transfer != null) {
+                transfer.onComplete();
+            }
+        });
+        commandRegistry.register("file_sent", command -> {
+            IncomingTransfer transfer = mIncomingTransfers.get(
+                    parseInt(command.getArgument().trim(), -1));
+            if (transfer != null) {
+                handleSent(transfer);
+            }
+        });
+        commandRegistry.register("file_cancel_send", command -> {
+            IncomingTransfer transfer = mIncomingTransfers.get(
+                    parseInt(command.getArgument().trim(), -1));
+            if (transfer != null) {
+                Log.d(TAG, String.format("file_cancel_send: " +
+                        "Device: %s cancelled sending %s!", mDeviceTag, transfer.mName));
+                dropIncoming(transfer);
+            }
+        });
+        commandRegistry.register("file_cancel_receive", command -> {
+            OutgoingTransfer transfer = getOutgoingTransfer(command.getArgument().trim());
+            if (transfer != null) {
+                Log.d(TAG, String.format("file_cancel_receive: " +
+                        "Device: %s cancelled receiving a file!", mDeviceTag));
+                transfer.onCancelled();
+            }
+        });
+    }
+
+    /** Starts sending a file to the client on a thread of its own. */
+    public void send(Uri uri) {
+        new OutgoingTransfer(mNextTransferId.getAndIncrement(), uri, null).start();
+    }
+
+    /**
+     * Resumes every file that was still being sent to this device when an earlier connection
+     * dropped. Should be called once the client has agreed to FILE_TRANSFER.
+     */
+    public void resumePending() {
+        for (TransferStore.Outgoing record : mTransferStore.loadOutgoing(mAddress)) {
+            Log.d(TAG, String.format("resumePending: " +
+                    "Resuming %s for device: %s...", record.mName, mDeviceTag));
+            new OutgoingTransfer(mNextTransferId.getAndIncrement(), Uri.parse(record.mUri),
+                    record).start();
+        }
+    }
+
+    /** Writes a chunk of an incoming file. Called on the connection thread. */
+    public void onChunk(Frame frame) {
+        if (frame.getPayloadLength() < CHUNK_HEADER_SIZE) {
+            Log.w(TAG, String.format("onChunk: " +
+                    "Ignoring malformed chunk from device: %s!", mDeviceTag));
+            return;
+        }
+
+        byte[] payload = frame.getPayload();
+        int offset = frame.getPayloadOffset();
+        IncomingTransfer transfer = mIncomingTransfers.get(Frame.readInt(payload, offset));
+        if (transfer == null) {
+            return;
+        }
+
+        int index = Frame.readInt(payload, offset + 4);
+        int checksum = Frame.readInt(payload, offset + 8);
+        int dataOffset = offset + CHUNK_HEADER_SIZE;
+        int dataLength = frame.getPayloadLength() - CHUNK_HEADER_SIZE;
+        transfer.mChunksArrived++;
+
+        mIncomingChecksum.reset();
+        mIncomingChecksum.update(payload, dataOffset, dataLength);
+        if ((int) mIncomingChecksum.getValue() != checksum) {
+            // The chunk stays missing, and is sent again once the sender asks what's left.
+            Log.w(TAG, String.format("onChunk: " +
+                    "Chunk %d of %s from device: %s failed its checksum!", index,
+                    transfer.mName, mDeviceTag));
+        } else {
+            try {
+                transfer.write(index, payload, dataOffset, dataLength);
+            } catch (IOException e) {
+                Log.e(TAG, String.format("onChunk: " +
+                        "Couldn't write %s from device: %s!", transfer.mName, mDeviceTag), e);
+                sendCommand("file_cancel_receive: " + transfer.mId);
+                dropIncoming(transfer);
+                return;
+            }
+        }
+
+        if (transfer.isComplete()) {
+            completeIncoming(transfer);
+            return;
+        }
+
+        // Ack every half window so the sender never stalls on a full one.
+        if (transfer.mChunksArrived % Math.max(1, mWindow / 2) == 0) {
+            sendCommand(String.format("file_ack: %d %d", transfer.mId,
+                    transfer.mChunksArrived));
+        }
+        if (transfer.mChunksSinceSave >= SAVE_INTERVAL) {
+            transfer.save();
+        }
+        updateProgress(false);
+    }
+
+    /**
+     * Stops every transfer because the connection is closing. Their progress is kept so that
+     * they can be resumed on the next connection.
+     */
+    public void cancelAll() {
+        for (OutgoingTransfer transfer : mOutgoingTransfers.values()) {
+            transfer.suspendTransfer();
+        }
+        for (IncomingTransfer transfer : mIncomingTransfers.values()) {
+            mIncomingTransfers.remove(transfer.mId);
+            transfer.save();
+            transfer.close();
+        }
+    }
+
+    private void handleOffer(String offer) {
+        // The name comes last since it may contain spaces.
+        String[] args = offer.trim().split(" ", 5);
+        if (args.length != 5) {
+            Log.w(TAG, String.format("handleOffer: " +
+                    "Ignoring malformed file offer from device: %s!", mDeviceTag));
+            return;
+        }
+
+        int id = parseInt(args[0], -1);
+        long size;
+        int chunkSize;
+        try {
+            size = Long.parseLong(args[1]);
+            chunkSize = Integer.parseInt(args[2]);
+        } catch (NumberFormatException e) {
+            sendCommand("file_reject: " + id);
+            return;
+        }
+
+        File directory = mContext.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
+        if (id < 0 || size < 0 || chunkSize <= 0 || chunkSize > Frame.MAX_PAYLOAD_SIZE ||
+                !isValidKey(args[3]) || directory == null ||
+                directory.getUsableSpace() < size) {
+            Log.w(TAG, String.format("handleOffer: " +
+                    "Rejecting file of %d bytes from device: %s!", size, mDeviceTag));
+            sendCommand("file_reject: " + id);
+            return;
+        }
+
+        TransferStore.Incoming state = new TransferStore.Incoming(args[3],
+                uniqueFile(directory, args[4]).getPath(), size, chunkSize, new BitSet());
+        IncomingTransfer transfer;
+        try {
+            transfer = new IncomingTransfer(id, state, true);
+        } catch (IOException e) {
+            Log.e(TAG, String.format("handleOffer: " +
+                    "Couldn't create file for device: %s!", mDeviceTag), e);
+            sendCommand("file_reject: " + id);
+            return;
+        }
+
+        transfer.save();
+        mIncomingTransfers.put(id, transfer);
+        sendCommand(String.format("file_accept: %d %d", id, mWindow));
+
+        Log.d(TAG, String.format("handleOffer: " +
+                "Receiving %s (%d bytes) from device: %s...", transfer.mName, size, mDeviceTag));
+
+        if (transfer.isComplete()) {
+            completeIncoming(transfer);
+        } else {
+            updateProgress(true);
+        }
+    }
+
+    /** Picks a partially received file back up, telling the sender which chunks it has. */
+    private void handleResume(String resume) {
+        String[] args = resume.trim().split(" ");
+        int id = parseInt(args[0], -1);
+        TransferStore.Incoming state = args.length == 2 && isValidKey(args[1]) ?
+                mTransferStore.loadIncoming(args[1]) : null;
+        if (id < 0 || state == null) {
+            sendCommand("file_reject: " + id);
+            return;
+        }
+
+        IncomingTransfer transfer;
+        try {
+            transfer = new IncomingTransfer(id, state, false);
+        } catch (IOException e) {
+            // The partial file is gone, so the sender has to start over.
+            Log.w(TAG, String.format("handleResume: " +
+                    "Couldn't reopen %s for device: %s!", state.mPath, mDeviceTag), e);
+            mTransferStore.deleteIncoming(state.mKey);
+            sendCommand("file_reject: " + id);
+            return;
+        }
+
+        mIncomingTransfers.put(id, transfer);
+        sendCommand(String.format("file_accept: %d %d %s", id, mWindow,
+                encodeChunks(state.mReceivedChunks)));
+
+        Log.d(TAG, String.format("handleResume: " +
+                        "Resuming %s from device: %s with %d of %d chunks!", transfer.mName,
+                mDeviceTag, state.mReceivedChunks.cardinality(), transfer.mChunkCount));
+
+        if (transfer.isComplete()) {
+            completeIncoming(transfer);
+        } else {
+            updateProgress(true);
+        }
+    }
+
+    /** Tells the sender which chunks are still missing once it has sent all of them. */
+    private void handleSent(IncomingTransfer transfer) {
+        if (transfer.isComplete()) {
+            completeIncoming(transfer);
+            return;
+        }
+
+        transfer.save();
+        sendCommand(String.format("file_status: %d %s", transfer.mId,
+                encodeChunks(transfer.mState.mReceivedChunks)));
+    }
+
+    private void completeIncoming(IncomingTransfer transfer) {
+        mIncomingTransfers.remove(transfer.mId);
+        transfer.close();
+        mTransferStore.deleteIncoming(transfer.mState.mKey);
+
+        sendCommand("file_complete: " + transfer.mId);
+        showToast(String.format("Received %s from %s!", transfer.mName,
+                mConnectionThread.getDeviceName()));
+        Log.d(TAG, String.format("completeIncoming: " +
+                "Received %s from device: %s!", transfer.mName, mDeviceTag));
+        updateProgress(true);
+    }
+
+    /** Stops receiving a file for good, deleting what was received of it. */
+    private void dropIncoming(IncomingTransfer transfer) {
+        mIncomingTransfers.remove(transfer.mId);
+        transfer.close();
+        mTransferStore.deleteIncoming(transfer.mState.mKey);
+        if (!new File(transfer.mState.mPath).delete()) {
+            Log.w(TAG, "dropIncoming: Couldn't delete partial file " + transfer.mName);
+        }
+        updateProgress(true);
+    }
+
+    /** Returns a file in the directory with the given name, numbered if it already exists. */
+    private static File uniqueFile(File directory, String name) {
+        // Only keep the last part of the name, so that a file can't be written elsewhere.
+        String fileName = new File(name).getName();
+        if (fileName.isEmpty() || fileName.equals("..")) {
+            fileName = "file";
+        }
+
+        File file = new File(directory, fileName);
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        for (int copy = 1; file.exists(); copy++) {
+            file = new File(directory, String.format("%s (%d)%s", base, copy, extension));
+        }
+        return file;
+    }
+
+    /** Returns whether a transfer key is safe to use as part of a file name. */
+    private static boolean isValidKey(String key) {
+        return key.matches("[0-9A-Za-z-]{1,64}");
+    }
+
+    /** Encodes a set of chunks as base64, or "-" if it is empty. */
+    private static String encodeChunks(BitSet chunks) {
+        byte[] bytes = chunks.toByteArray();
+        return bytes.length == 0 ? "-" : Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static BitSet decodeChunks(String chunks) {
+        if (chunks.isEmpty() || chunks.equals("-")) {
+            return new BitSet();
+        }
+
+        try {
+            return BitSet.valueOf(Base64.getDecoder().decode(chunks));
+        } catch (IllegalArgumentException e) {
+            return new BitSet();
+        }
+    }
+
+    /**
+     * Shows the progress of every running transfer on the connection's notification. Only
+     * updates it every PROGRESS_INTERVAL unless forced, since notifications are rate limited.
+     */
+    private synchronized void updateProgress(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - mLastProgressUpdate < PROGRESS_INTERVAL) {
+            return;
+        }
+        mLastProgressUpdate = now;
+
+        int transfers = 0;
+        long bytesDone = 0;
+        long bytesTotal = 0;
+        for (OutgoingTransfer transfer : mOutgoingTransfers.values()) {
+            transfers++;
+            bytesDone += transfer.getBytesDone();
+            bytesTotal += transfer.mRecord.mSize;
+        }
+        for (IncomingTransfer transfer : mIncomingTransfers.values()) {
+            transfers++;
+            bytesDone += Math.min(transfer.mState.mSize,
+                    (long) transfer.mState.mReceivedChunks.cardinality() *
+                            transfer.mState.mChunkSize);
+            bytesTotal += transfer.mState.mSize;
+        }
+
+        mConnectionThread.showTransferProgress(transfers, bytesDone, bytesTotal);
+    }
+
+    /**
+     * Returns a cleared buffer for a chunk of the given size. Transfers resumed with a larger
+     * chunk size than the pool's get a buffer of their own, which the pool then drops.
+     */
+    private static ByteBuffer acquireChunkBuffer(int chunkSize) {
+        return chunkSize <= sChunkBufferPool.getBufferSize() ? sChunkBufferPool.acquire() :
+                ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    private OutgoingTransfer getOutgoingTransfer(String id) {
+        return mOutgoingTransfers.get(parseInt(id, -1));
+    }
+
+    private void sendCommand(String command) {
+        mConnectionThread.sendCommand(Channel.CONTROL, command);
+    }
+
+    private void showToast(String text) {
+        new Handler(Looper.getMainLooper()).post(() -> Toast.makeText(
+                mContext.getApplicationContext(), text, Toast.LENGTH_SHORT).show());
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /** Reads a file from a content Uri and sends it a chunk at a time. */
+    private class OutgoingTransfer extends Thread {
+        private final int mId;
+        private final Uri mUri;
+        private volatile TransferStore.Outgoing mRecord;
+        private final CRC32 mChecksum = new CRC32();
+
+        // Guarded by this.
+        private boolean mAccepted = false;
+        private boolean mRejected = false;
+        private boolean mCompleted = false;
+        private boolean mCancelled = false;
+        private boolean mSuspended = false;
+        private int mSendWindow;
+        private int mChunksSent = 0;
+        private int mChunksAcked = 0;
+        private BitSet mReceiverChunks = new BitSet();
+        private boolean mStatusReceived = false;
+        private long mLastProgressTime;
+
+        OutgoingTransfer(int id, Uri uri, TransferStore.Outgoing record) {
+            super("OutgoingTransfer " + id);
+            this.mId = id;
+            this.mUri = uri;
+            this.mRecord = record;
+        }
+
+        @Override
+        public void run() {
+            boolean resuming = mRecord != null;
+            if (!resuming) {
+                mRecord = queryFile();
+                if (mRecord == null) {
+                    return;
+                }
+                mTransferStore.saveOutgoing(mRecord);
+            }
+
+            mOutgoingTransfers.put(mId, this);
+            boolean finished = false;
+            try {
+                synchronized (this) {
+                    mLastProgressTime = System.currentTimeMillis();
+                }
+
+                // A receiver that no longer has the partial file rejects the resume, in which
+                // case the file is offered from the start.
+                boolean accepted = false;
+                if (resuming) {
+                    sendCommand(String.format("file_resume: %d %s", mId, mRecord.mKey));
+                    accepted = awaitAccepted();
+                }
+                if (!accepted && !isStopped()) {
+                    clearRejected();
+                    sendCommand(String.format("file_offer: %d %d %d %s %s", mId,
+                            mRecord.mSize, mRecord.mChunkSize, mRecord.mKey, mRecord.mName));
+                    accepted = awaitAccepted();
+                }
+                if (!accepted) {
+                    finished = !isSuspended();
+                    return;
+                }
+
+                long start = System.currentTimeMillis();
+                for (int round = 0; round < MAX_SEND_ROUNDS; round++) {
+                    if (!sendMissingChunks(getReceiverChunks())) {
+                        finished = !isSuspended();
+                        return;
+                    }
+
+                    mConnectionThread.sendCommand(Channel.FILES, "file_sent: " + mId);
+                    if (awaitResult()) {
+                        finished = true;
+                        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                        showToast(String.format("Sent %s to %s!", mRecord.mName,
+                                mConnectionThread.getDeviceName()));
+                        Log.d(TAG, String.format("run: Sent %s (%d bytes) to device: %s in " +
+                                        "%d ms (%d KB/s)!", mRecord.mName, mRecord.mSize,
+                                mDeviceTag, elapsed, mRecord.mSize / elapsed));
+                        return;
+                    } else if (isStopped()) {
+                        finished = !isSuspended();
+                        return;
+                    }
+                }
+
+                Log.w(TAG, String.format("run: " +
+                        "Giving up on sending %s to device: %s!", mRecord.mName, mDeviceTag));
+                sendCommand("file_cancel_send: " + mId);
+                finished = true;
+            } catch (IOException | RuntimeException e) {
+                // The resolver throws a SecurityException once the permission to read the file
+                // is gone, which it always is for a transfer resumed after the app restarted.
+                Log.e(TAG, String.format("run: " +
+                        "Couldn't send %s to device: %s!", mRecord.mName, mDeviceTag), e);
+                sendCommand("file_cancel_send: " + mId);
+                finished = true;
+            } catch (InterruptedException e) {
+                finished = !isSuspended();
+                if (finished) {
+                    sendCommand("file_cancel_send: " + mId);
+                }
+            } finally {
+                // Only a dropped connection keeps the transfer around for the next one.
+                if (finished) {
+                    mTransferStore.deleteOutgoing(mRecord.mKey);
+                }
+                mOutgoingTransfers.remove(mId);
+                updateProgress(true);
+            }
+        }
+
+        /**
+         * Sends every chunk the receiver doesn't have yet. Returns false if the transfer was
+         * stopped along the way.
+         *
+         * The file is opened as a ParcelFileDescriptor and read through its FileChannel into
+         * pooled direct buffers, which the writer thread copies straight into its own payload
+         * buffer. No heap array is allocated per chunk, so large files don't churn the GC
+         * while a sync is running alongside them.
+         */
+        private boolean sendMissingChunks(BitSet receiverChunks)
+                throws IOException, InterruptedException {
+            int chunkSize = mRecord.mChunkSize;
+            int chunkCount = (int) ((mRecord.mSize + chunkSize - 1) / chunkSize);
+            ParcelFileDescriptor descriptor =
+                    mContext.getContentResolver().openFileDescriptor(mUri, "r");
+            if (descriptor == null) {
+                throw new IOException("No content for " + mUri);
+            }
+
+            // Closing the stream closes the descriptor as well.
+            try (FileInputStream inputStream =
+                         new ParcelFileDescriptor.AutoCloseInputStream(descriptor)) {
+                FileChannel channel = inputStream.getChannel();
+
+                // Providers may hand back a pipe instead of a file, which can only be read in
+                // order, so chunks before the next one needed are read and thrown away.
+                boolean seekable = descriptor.getStatSize() >= 0;
+                long streamPosition = 0;
+
+                for (int index = receiverChunks.nextClearBit(0); index < chunkCount;
+                     index = receiverChunks.nextClearBit(index + 1)) {
+                    if (!awaitWindow()) {
+                        return false;
+                    }
+
+                    long chunkStart = (long) index * chunkSize;
+                    int length = (int) Math.min(chunkSize, mRecord.mSize - chunkStart);
+                    ByteBuffer chunk = acquireChunkBuffer(chunkSize);
+                    try {
+                        if (!seekable) {
+                            skipTo(channel, chunk, streamPosition, chunkStart);
+                            streamPosition = chunkStart + length;
+                        }
+                        readChunk(channel, chunk, seekable ? chunkStart : -1, length);
+                    } catch (IOException e) {
+                        sChunkBufferPool.release(chunk);
+                        throw e;
+                    }
+
+                    mChecksum.reset();
+                    mChecksum.update(chunk);
+                    chunk.rewind();
+
+                    if (!mConnectionThread.sendFrame(chunkFrame(index,
+                            (int) mChecksum.getValue(), chunk))) {
+                        sChunkBufferPool.release(chunk);
+                        return false;
+                    }
+                    onChunkSent();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Creates the frame for a chunk. It is encoded on the writer thread, which hands the
+         * chunk's buffer back to the pool once it has been copied out.
+         */
+        private Frame chunkFrame(int index, int checksum, ByteBuffer chunk) {
+            return Frame.lazy(Frame.TYPE_FILE_CHUNK, Channel.FILES, buffer -> {
+                try {
+                    buffer.writeInt(mId);
+                    buffer.writeInt(index);
+                    buffer.writeInt(checksum);
+                    buffer.write(chunk);
+                } finally {
+                    sChunkBufferPool.release(chunk);
+                }
+            });
+        }
+
+        /**
+         * Reads length bytes into a buffer, from position or from wherever the channel is when
+         * position is -1. The buffer is flipped so that it is ready to be read from.
+         */
+        private void readChunk(FileChannel channel, ByteBuffer chunk, long position, int length)
+                throws IOException {
+            chunk.clear();
+            chunk.limit(length);
+            while (chunk.hasRemaining()) {
+                int read = position == -1 ? channel.read(chunk) :
+                        channel.read(chunk, position + chunk.position());
+                if (read == -1) {
+                    throw new IOException("File ended early: " + mRecord.mName);
+                }
+            }
+            chunk.flip();
+        }
+
+        /** Reads a channel that can't seek forward from its position to target. */
+        private void skipTo(FileChannel channel, ByteBuffer scratch, long position, long target)
+                throws IOException {
+            while (position < target) {
+                scratch.clear();
+                scratch.limit((int) Math.min(scratch.capacity(), target - position));
+                int read = channel.read(scratch);
+                if (read == -1) {
+                    throw new IOException("File ended early: " + mRecord.mName);
+                }
+                position += read;
+            }
+        }
+
+        /** Looks up the file's name and size. Returns null if it can't be read. */
+        private TransferStore.Outgoing queryFile() {
+            try (Cursor cursor = mContext.getContentResolver().query(mUri,
+                    new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE},
+                    null, null, null)) {
+                if (cursor == null || !cursor.moveToFirst() || cursor.isNull(1)) {
+                    Log.w(TAG, String.format("queryFile: " +
+                            "Couldn't read %s for device: %s!", mUri, mDeviceTag));
+                    return null;
+                }
+
+                String name = cursor.isNull(0) ? "file" : cursor.getString(0);
+                int chunkSize = mConnectionThread.getLinkEstimator()
+                        .getFragmentSize(SocketWriter.FRAGMENT_SIZE) - CHUNK_HEADER_SIZE;
+                return new TransferStore.Outgoing(UUID.randomUUID().toString(), mAddress,
+                        mUri.toString(), name, cursor.getLong(1), chunkSize);
+            } catch (RuntimeException e) {
+                // Such as a SecurityException once the app no longer has access to the file.
+                Log.w(TAG, String.format("queryFile: " +
+                        "Couldn't read %s for device: %s!", mUri, mDeviceTag), e);
+                return null;
+            }
+        }
+
+        private synchronized boolean awaitAccepted() throws InterruptedException {
+            while (!mAccepted && !mRejected && !mCancelled) {
+                if (!waitForProgress()) {
+                    return false;
+                }
+            }
+            return mAccepted && !mCancelled;
+        }
+
+        /** Waits until another chunk fits in the receiver's window. */
+        private synchronized boolean awaitWindow() throws InterruptedException {
+            while (mChunksSent - mChunksAcked >= mSendWindow && !mCancelled) {
+                if (!waitForProgress()) {
+                    return false;
+                }
+            }
+            return !mCancelled;
+        }
+
+        /**
+         * Waits for the receiver's answer to "file_sent". Returns true once it has the whole
+         * file, or false if it sent the chunks it still has missing, or the transfer stopped.
+         */
+        private synchronized boolean awaitResult() throws InterruptedException {
+            mStatusReceived = false;
+            while (!mCompleted && !mStatusReceived && !mCancelled) {
+                if (!waitForProgress()) {
+                    return false;
+                }
+            }
+            return mCompleted && !mCancelled;
+        }
+
+        /**
+         * Waits to be notified of progress. Returns false, and tells the client, if nothing
+         * happened for TRANSFER_TIMEOUT.
+         */
+        private boolean waitForProgress() throws InterruptedException {
+            long remaining = mLastProgressTime + TRANSFER_TIMEOUT - System.currentTimeMillis();
+            if (remaining <= 0) {
+                Log.w(TAG, String.format("waitForProgress: " +
+                        "Sending %s to device: %s timed out!", mRecord.mName, mDeviceTag));
+                sendCommand("file_cancel_send: " + mId);
+                mCancelled = true;
+                return false;
+            }
+            wait(remaining);
+            return true;
+        }
+
+        synchronized void onAccepted(int window, BitSet receiverChunks) {
+            mAccepted = true;
+            mSendWindow = Math.max(1, window);
+            mReceiverChunks = receiverChunks;
+            mLastProgressTime = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        synchronized void onRejected() {
+            mRejected = true;
+            notifyAll();
+        }
+
+        synchronized void onAck(int chunksArrived) {
+            if (chunksArrived > mChunksAcked) {
+                mChunksAcked = chunksArrived;
+                mLastProgressTime = System.currentTimeMillis();
+                notifyAll();
+            }
+            updateProgress(false);
+        }
+
+        synchronized void onStatus(BitSet receiverChunks) {
+            mReceiverChunks = receiverChunks;
+            mStatusReceived = true;
+            // Every chunk sent so far has arrived or been lost, so the window starts over.
+            mChunksAcked = mChunksSent;
+            mLastProgressTime = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        synchronized void onComplete() {
+            mCompleted = true;
+            notifyAll();
+        }
+
+        /** Stops the transfer because the receiver gave up on it. */
+        synchronized void onCancelled() {
+            mCancelled = true;
+            notifyAll();
+        }
+
+        /** Stops the transfer because the connection is closing, keeping it for resuming. */
+        synchronized void suspendTransfer() {
+            mSuspended = true;
+            mCancelled = true;
+            notifyAll();
+            // Also wakes the thread if it is blocked queueing a chunk.
+            interrupt();
+        }
+
+        private synchronized void onChunkSent() {
+            mChunksSent++;
+        }
+
+        private synchronized void clearRejected() {
+            mRejected = false;
+        }
+
+        private synchronized boolean isSuspended() {
+            return mSuspended;
+        }
+
+        private synchronized boolean isStopped() {
+            return mCancelled;
+        }
+
+        private synchronized BitSet getReceiverChunks() {
+            return mReceiverChunks;
+        }
+
+        synchronized long getBytesDone() {
+            if (mCompleted) {
+                return mRecord.mSize;
+            }
+            long chunks = mReceiverChunks.cardinality() + mChunksAcked;
+            return Math.min(mRecord.mSize, chunks * mRecord.mChunkSize);
+        }
+    }
+
+    /** A file being received. Only touched by the connection thread. */
+    private class IncomingTransfer {
+        private final int mId;
+        private final TransferStore.Incoming mState;
+        private final String mName;
+        private final int mChunkCount;
+        private final RandomAccessFile mOutput;
+
+        // Chunks that arrived during this connection, valid or not, which is what acks count.
+        private int mChunksArrived = 0;
+
+        // Chunks written since the progress was last saved.
+        private int mChunksSinceSave = 0;
+
+        /**
+         * Opens the file a transfer is written to. A new transfer creates it, while a resumed
+         * one requires it to still be there.
+         */
+        IncomingTransfer(int id, TransferStore.Incoming state, boolean create)
+                throws IOException {
+            this.mId = id;
+            this.mState = state;
+            File file = new File(state.mPath);
+            this.mName = file.getName();
+            this.mChunkCount = (int) ((state.mSize + state.mChunkSize - 1) / state.mChunkSize);
+
+            if (!create && (!file.isFile() || file.length() != state.mSize)) {
+                throw new IOException("Partial file is missing or changed: " + state.mPath);
+            }
+            this.mOutput = new RandomAccessFile(file, "rw");
+            if (create) {
+                mOutput.setLength(state.mSize);
+            }
+        }
+
+        void write(int index, byte[] data, int offset, int length) throws IOException {
+            if (index < 0 || index >= mChunkCount || mState.mReceivedChunks.get(index)) {
+                return;
+            }
+
+            long position = (long) index * mState.mChunkSize;
+            if (length != Math.min(mState.mChunkSize, mState.mSize - position)) {
+                throw new IOException("Chunk " + index + " has the wrong size!");
+            }
+
+            mOutput.seek(position);
+            mOutput.write(data, offset, length);
+            mState.mReceivedChunks.set(index);
+            mChunksSinceSave++;
+        }
+
+        boolean isComplete() {
+            return mState.mReceivedChunks.cardinality() == mChunkCount;
+        }
+
+        /**
+         * Saves which chunks have been written. The file is synced first, so a saved chunk is
+         * never lost to a crash.
+         */
+        void save() {
+            try {
+                mOutput.getFD().sync();
+            } catch (IOException e) {
+                Log.w(TAG, "save: Couldn't sync " + mName, e);
+                return;
+            }
+            mTransferStore.saveIncoming(mState);
+            mChunksSinceSave = 0;
+        }
+
+        void close() {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close: Couldn't close " + mName, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package sync.synchrony.Synchrony;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks sequenced frames sent to a paired PC and how many of them it has acknowledged.
+ *
+ * Once a client enables flow control, every frame written to it gets a sequence number and is
+ * kept until the client acknowledges it with a cumulative ack. The client also grants a credit
+ * window, and the bulk lane of the OutboundQueue is paused whenever the bytes in flight reach
+ * it, so a slow client can push back on a sync instead of being flooded.
+ *
+ * The state is kept per device rather than per connection, so that after a reconnect any frames
+ * the client never acknowledged can be resent from its last acked sequence number.
+ */
+public class FlowControl {
+    // Credit window used when the client doesn't ask for a specific one.
+    public static final int DEFAULT_WINDOW = 64 * 1024;
+
+    // Flow control state for every paired PC, keyed by address.
+    private static final ConcurrentHashMap<String, FlowControl> sDeviceFlowControls =
+            new ConcurrentHashMap<>();
+
+    private OutboundQueue mOutboundQueue;
+    private volatile boolean mEnabled = false;
+
+    private int mNextSequence = 1;
+    private int mLastAckedSequence = 0;
+    private int mWindow = DEFAULT_WINDOW;
+    private long mBytesInFlight = 0;
+
+    // Sent frames the client hasn't acknowledged yet, in sequence order.
+    private final ArrayDeque<Frame> mUnackedFrames = new ArrayDeque<>();
+
+    // Callbacks to run once the client acknowledges a sequence number, keyed by it.
+    private final TreeMap<Integer, Runnable> mAckCallbacks = new TreeMap<>();
+
+    /** Returns the flow control state for a device, creating it if needed. */
+    public static FlowControl forDevice(String address) {
+        FlowControl flowControl = sDeviceFlowControls.get(address);
+        if (flowControl == null) {
+            sDeviceFlowControls.putIfAbsent(address, new FlowControl());
+            flowControl = sDeviceFlowControls.get(address);
+        }
+        return flowControl;
+    }
+
+    /**
+     * Attaches the state to a new connection's outbound queue. Flow control stays off until the
+     * client enables it on the new connection.
+     */
+    public synchronized void attach(OutboundQueue outboundQueue) {
+        mOutboundQueue = outboundQueue;
+        mEnabled = false;
+    }
+
+    /**
+     * Enables flow control for the current connection. resumeFrom is the last sequence number
+     * the client received on a previous connection, or -1 if it has nothing to resume. Returns
+     * the unacked frames after resumeFrom, which must be resent before any new frames. Should
+     * only be called from the writer thread.
+     */
+    public synchronized List<Frame> enable(int window, int resumeFrom) {
+        mWindow = window > 0 ? window : DEFAULT_WINDOW;
+
+        ArrayList<Frame> resend = new ArrayList<>();
+        if (resumeFrom >= mLastAckedSequence && resumeFrom < mNextSequence) {
+            // Everything up to resumeFrom made it, so only what came after needs resending.
+            acknowledge(resumeFrom);
+            resend.addAll(mUnackedFrames);
+        } else {
+            // The client has nothing we can resume from, so start from a clean slate. Frames
+            // waiting for an ack will never get one.
+            mUnackedFrames.clear();
+            mAckCallbacks.clear();
+            mBytesInFlight = 0;
+            mLastAckedSequence = mNextSequence - 1;
+        }
+
+        mEnabled = true;
+        updateBulkPaused();
+
+        return resend;
+    }
+
+    /** Returns the sequence number the next new frame will get. */
+    public synchronized int getNextSequence() {
+        return mNextSequence;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Assigns the next sequence number to a frame that is about to be written. */
+    public synchronized Frame sequence(Frame frame) {
+        return frame.withSequence(mNextSequence++);
+    }
+
+    /**
+     * Runs a callback once the client acknowledges a sequence number. It runs on whichever
+     * thread handles the ack, under this object's lock, so it must not block.
+     */
+    public synchronized void runWhenAcked(int sequence, Runnable callback) {
+        if (sequence <= mLastAckedSequence) {
+            callback.run();
+            return;
+        }
+        mAckCallbacks.put(sequence, callback);
+    }
+
+    /** Records a newly sequenced frame as sent and in flight. */
+    public synchronized void onFrameSent(Frame frame) {
+        mUnackedFrames.addLast(frame);
+        mBytesInFlight += wireSize(frame);
+        updateBulkPaused();
+    }
+
+    /** Handles an ack from the client, which may also grant a new credit window. */
+    public synchronized void onAck(int ackedSequence, int window) {
+        if (window > 0) {
+            mWindow = window;
+        }
+
+        acknowledge(ackedSequence);
+        updateBulkPaused();
+    }
+
+    public synchronized int getLastAckedSequence() {
+        return mLastAckedSequence;
+    }
+
+    private void acknowledge(int ackedSequence) {
+        if (ackedSequence <= mLastAckedSequence) {
+            return;
+        }
+
+        while (!mUnackedFrames.isEmpty() &&
+                mUnackedFrames.peekFirst().getSequence() <= ackedSequence) {
+            mBytesInFlight -= wireSize(mUnackedFrames.pollFirst());
+        }
+        mLastAckedSequence = ackedSequence;
+
+        while (!mAckCallbacks.isEmpty() && mAckCallbacks.firstKey() <= ackedSequence) {
+            mAckCallbacks.pollFirstEntry().getValue().run();
+        }
+    }
+
+    private void updateBulkPaused() {
+        if (mOutboundQueue != null) {
+            mOutboundQueue.setBulkPaused(mEnabled && mBytesInFlight >= mWindow);
+        }
+    }
+
+    private static int wireSize(Frame frame) {
+        return Frame.headerSize(frame.getFlags()) + frame.getPayloadLength();
+    }
+}
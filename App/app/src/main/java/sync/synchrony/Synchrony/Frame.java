@@ -0,0 +1,265 @@
+package sync.synchrony.Synchrony;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single unit of data sent over a sync socket. Frames replace the old delimited text
+ * protocol with a small binary header so that commands can be reassembled without scanning
+ * their payload.
+ *
+ * Wire format: [magic (1 byte)] [type (1 byte)] [flags (1 byte)]
+ * [payload length (4 bytes, big endian)] [sequence (4 bytes, big endian, if FLAG_SEQUENCED)]
+ * [channel (1 byte, if FLAG_CHANNEL)] [payload]
+ *
+ * Frames without FLAG_CHANNEL belong to Channel.CONTROL. A payload that is split into
+ * fragments is sent as several frames on the same channel, all but the last with FLAG_MORE.
+ */
+public class Frame {
+    // Marks the start of a frame. 0xF5 can never appear in UTF-8 text, so a frame can always be
+    // told apart from a command sent with the old delimited text protocol.
+    public static final byte MAGIC = (byte) 0xF5;
+
+    // Size of the frame header in bytes, not counting the optional fields.
+    public static final int HEADER_SIZE = 7;
+
+    // Size of the sequence number that follows the header of sequenced frames.
+    public static final int SEQUENCE_SIZE = 4;
+
+    // Size of the channel id that follows the header of frames on a channel other than control.
+    public static final int CHANNEL_SIZE = 1;
+
+    // Largest possible header, used to size header buffers.
+    public static final int MAX_HEADER_SIZE = HEADER_SIZE + SEQUENCE_SIZE + CHANNEL_SIZE;
+
+    // Largest payload that will be accepted from a client. Protects the reassembly buffer
+    // from a corrupt length field.
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    // Ends each command sent with the old delimited text protocol.
+    public static final byte[] LEGACY_DELIMITER =
+            Utils.COMMAND_DELIMITER.getBytes(StandardCharsets.UTF_8);
+
+    // Frame types.
+    public static final byte TYPE_COMMAND = 1;
+    // Sent by the client to acknowledge sequenced frames. See FlowControl.
+    public static final byte TYPE_ACK = 2;
+    // A sync record encoded with RecordCodec.
+    public static final byte TYPE_RECORD = 3;
+    // A chunk of a file being transferred. See FileTransferManager.
+    public static final byte TYPE_FILE_CHUNK = 4;
+    // A chunk of a clip being streamed. See ClipboardSync.
+    public static final byte TYPE_CLIPBOARD_CHUNK = 5;
+
+    // Frame flags.
+    // The payload was compressed with FrameCompressor.
+    public static final byte FLAG_COMPRESSED = 0x01;
+    // The header is followed by a sequence number.
+    public static final byte FLAG_SEQUENCED = 0x02;
+    // The payload is a fragment, and more fragments of it follow on the same channel.
+    public static final byte FLAG_MORE = 0x04;
+    // The header is followed by a channel id.
+    public static final byte FLAG_CHANNEL = 0x08;
+    // The payload was sealed with FrameSealer, after being compressed if FLAG_COMPRESSED is set.
+    public static final byte FLAG_SEALED = 0x10;
+
+    private final byte mType;
+    private final byte mFlags;
+    private final byte mChannel;
+
+    // The payload is the mPayloadLength bytes of mPayload starting at mPayloadOffset. Only
+    // outgoing fragments use part of an array, every other frame owns its whole payload.
+    private final byte[] mPayload;
+    private final int mPayloadOffset;
+    private final int mPayloadLength;
+
+    // Encodes the payload on the writer thread for frames created with lazy. Null otherwise.
+    private final PayloadEncoder mPayloadEncoder;
+
+    // Sequence number assigned by FlowControl, or 0 if the frame isn't sequenced.
+    private final int mSequence;
+
+    public Frame(byte type, byte[] payload) {
+        this(type, (byte) 0, 0, Channel.CONTROL, payload);
+    }
+
+    public Frame(byte type, byte flags, byte[] payload) {
+        this(type, flags, 0, Channel.CONTROL, payload);
+    }
+
+    public Frame(byte type, byte flags, int sequence, byte channel, byte[] payload) {
+        this(type, flags, sequence, channel, payload, 0, payload.length, null);
+    }
+
+    private Frame(byte type, byte flags, int sequence, byte channel, byte[] payload,
+                  int payloadOffset, int payloadLength, PayloadEncoder payloadEncoder) {
+        this.mType = type;
+        this.mFlags = flags;
+        this.mSequence = sequence;
+        this.mChannel = channel;
+        this.mPayload = payload;
+        this.mPayloadOffset = payloadOffset;
+        this.mPayloadLength = payloadLength;
+        this.mPayloadEncoder = payloadEncoder;
+    }
+
+    /**
+     * Creates a frame whose payload is only encoded once the writer thread gets to it, straight
+     * into the writer's PayloadBuffer. Anything the encoder reads must not change after the
+     * frame is queued.
+     */
+    public static Frame lazy(byte type, byte channel, PayloadEncoder payloadEncoder) {
+        return new Frame(type, (byte) 0, 0, channel, null, 0, 0, payloadEncoder);
+    }
+
+    /** Creates a command frame on the control channel from a text command. */
+    public static Frame command(String command) {
+        return command(Channel.CONTROL, command);
+    }
+
+    /** Creates a command frame on a channel from a text command. */
+    public static Frame command(byte channel, String command) {
+        return new Frame(TYPE_COMMAND, (byte) 0, 0, channel,
+                command.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public byte getType() {
+        return mType;
+    }
+
+    public byte getFlags() {
+        return mFlags;
+    }
+
+    public boolean hasFlag(byte flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    public byte getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Returns the array holding the payload, or null if the frame is lazy and hasn't been
+     * encoded. For outgoing fragments the payload is only part of the array, see
+     * getPayloadOffset and getPayloadLength.
+     */
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    public int getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    public boolean isLazy() {
+        return mPayloadEncoder != null;
+    }
+
+    /** Encodes a lazy frame's payload into a buffer. */
+    public void encodePayload(PayloadBuffer buffer) throws IOException {
+        mPayloadEncoder.encode(buffer);
+    }
+
+    /** Returns a copy of the frame with its payload already encoded. */
+    public Frame withPayload(byte[] payload) {
+        return new Frame(mType, mFlags, mSequence, mChannel, payload);
+    }
+
+    /**
+     * Returns a fragment of this frame's payload, taken from part of an array that holds the
+     * whole payload. The fragment isn't sequenced yet, and has FLAG_MORE if more follow.
+     */
+    public Frame fragment(byte[] payload, int offset, int length, boolean more) {
+        byte flags = (byte) (mFlags & ~(FLAG_SEQUENCED | FLAG_MORE));
+        if (more) {
+            flags |= FLAG_MORE;
+        }
+        return new Frame(mType, flags, 0, mChannel, payload, offset, length, null);
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /** Returns a copy of the frame with a sequence number. The payload is shared, not copied. */
+    public Frame withSequence(int sequence) {
+        return new Frame(mType, (byte) (mFlags | FLAG_SEQUENCED), sequence, mChannel, mPayload,
+                mPayloadOffset, mPayloadLength, mPayloadEncoder);
+    }
+
+    /** Writes a frame's payload into a PayloadBuffer. */
+    public interface PayloadEncoder {
+        void encode(PayloadBuffer buffer) throws IOException;
+    }
+
+    /** Returns the payload decoded as a UTF-8 text command. */
+    public String getCommand() {
+        return new String(mPayload, mPayloadOffset, mPayloadLength, StandardCharsets.UTF_8);
+    }
+
+    /** Encodes the frame, header included, into a byte array ready to be written to a socket. */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[headerSize(mFlags) + mPayloadLength];
+        int headerSize = writeHeader(bytes, 0, mType, mFlags, mSequence, mChannel,
+                mPayloadLength);
+        System.arraycopy(mPayload, mPayloadOffset, bytes, headerSize, mPayloadLength);
+        return bytes;
+    }
+
+    /** Returns the size of a header with the given flags. */
+    public static int headerSize(byte flags) {
+        int size = HEADER_SIZE;
+        if ((flags & FLAG_SEQUENCED) != 0) {
+            size += SEQUENCE_SIZE;
+        }
+        if ((flags & FLAG_CHANNEL) != 0) {
+            size += CHANNEL_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a frame header for a payload of the given length into dest at offset. The sequence
+     * number and channel are only written if FLAG_SEQUENCED and FLAG_CHANNEL are set. Returns
+     * the size of the header.
+     */
+    public static int writeHeader(byte[] dest, int offset, byte type, byte flags, int sequence,
+                                  byte channel, int payloadLength) {
+        dest[offset] = MAGIC;
+        dest[offset + 1] = type;
+        dest[offset + 2] = flags;
+        writeInt(dest, offset + 3, payloadLength);
+
+        int size = HEADER_SIZE;
+        if ((flags & FLAG_SEQUENCED) != 0) {
+            writeInt(dest, offset + size, sequence);
+            size += SEQUENCE_SIZE;
+        }
+        if ((flags & FLAG_CHANNEL) != 0) {
+            dest[offset + size] = channel;
+            size += CHANNEL_SIZE;
+        }
+        return size;
+    }
+
+    /** Writes a big endian int into dest at offset. */
+    public static void writeInt(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) (value >>> 24);
+        dest[offset + 1] = (byte) (value >>> 16);
+        dest[offset + 2] = (byte) (value >>> 8);
+        dest[offset + 3] = (byte) value;
+    }
+
+    /** Reads a big endian int from src at offset. */
+    public static int readInt(byte[] src, int offset) {
+        return ((src[offset] & 0xFF) << 24) |
+                ((src[offset + 1] & 0xFF) << 16) |
+                ((src[offset + 2] & 0xFF) << 8) |
+                (src[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,174 @@
+package sync.synchrony.Synchrony;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reassembly buffer for incoming socket data. Bytes are appended as they are read from the
+ * socket and complete frames are taken out once all of their bytes have arrived, so a command
+ * that is split across several reads is never cut in half.
+ *
+ * Clients that still use the old delimited text protocol are also supported. Their commands are
+ * returned as command frames so the rest of the connection doesn't need to know the difference.
+ */
+public class FrameAssembler {
+    private static final int INITIAL_CAPACITY = 4096;
+
+    // Buffered bytes live between mStart and mEnd.
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    private int mStart = 0;
+    private int mEnd = 0;
+
+    // Position up to which buffered legacy text has already been searched for a delimiter, so
+    // that a long command arriving over several reads is only scanned once.
+    private int mScanPosition = 0;
+
+    // Set once the client sends its first frame. Read by other threads when choosing how to
+    // encode outgoing commands.
+    private volatile boolean mPeerFraming = false;
+
+    /** Appends bytes read from the socket to the buffer. */
+    public void append(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, mBuffer, mEnd, length);
+        mEnd += length;
+    }
+
+    /**
+     * Returns the next complete frame in the buffer, or null if more bytes are needed.
+     * Throws an IOException if the buffer holds a frame that can't be valid.
+     */
+    public Frame next() throws IOException {
+        if (mEnd - mStart == 0) {
+            return null;
+        }
+
+        if (mBuffer[mStart] == Frame.MAGIC) {
+            return nextFrame();
+        } else {
+            return nextLegacyCommand();
+        }
+    }
+
+    /** Returns whether the client has sent any frames, meaning it understands them as well. */
+    public boolean isPeerFraming() {
+        return mPeerFraming;
+    }
+
+    /** Returns the number of bytes waiting in the buffer. */
+    public int buffered() {
+        return mEnd - mStart;
+    }
+
+    private Frame nextFrame() throws IOException {
+        if (mEnd - mStart < Frame.HEADER_SIZE) {
+            return null;
+        }
+
+        byte type = mBuffer[mStart + 1];
+        byte flags = mBuffer[mStart + 2];
+        int payloadLength = Frame.readInt(mBuffer, mStart + 3);
+
+        if (payloadLength < 0 || payloadLength > Frame.MAX_PAYLOAD_SIZE) {
+            throw new IOException(String.format("Invalid frame length: %d!", payloadLength));
+        }
+
+        int headerSize = Frame.headerSize(flags);
+        if (mEnd - mStart < headerSize + payloadLength) {
+            return null;
+        }
+
+        int fieldOffset = mStart + Frame.HEADER_SIZE;
+        int sequence = 0;
+        if ((flags & Frame.FLAG_SEQUENCED) != 0) {
+            sequence = Frame.readInt(mBuffer, fieldOffset);
+            fieldOffset += Frame.SEQUENCE_SIZE;
+        }
+
+        byte channel = Channel.CONTROL;
+        if ((flags & Frame.FLAG_CHANNEL) != 0) {
+            channel = mBuffer[fieldOffset];
+        }
+
+        int payloadStart = mStart + headerSize;
+        byte[] payload = Arrays.copyOfRange(mBuffer, payloadStart, payloadStart + payloadLength);
+        consume(headerSize + payloadLength);
+        mPeerFraming = true;
+
+        return new Frame(type, flags, sequence, channel, payload);
+    }
+
+    private Frame nextLegacyCommand() throws IOException {
+        int searchFrom = Math.max(mStart, mScanPosition);
+        int delimiterIndex = indexOfDelimiter(searchFrom);
+
+        if (delimiterIndex == -1) {
+            // Keep the last few bytes unscanned in case a delimiter is split across reads.
+            mScanPosition = Math.max(mStart, mEnd - Frame.LEGACY_DELIMITER.length + 1);
+
+            if (mEnd - mStart > Frame.MAX_PAYLOAD_SIZE) {
+                throw new IOException("Legacy command exceeded the maximum command size!");
+            }
+            return null;
+        }
+
+        byte[] payload = Arrays.copyOfRange(mBuffer, mStart, delimiterIndex);
+        consume(delimiterIndex + Frame.LEGACY_DELIMITER.length - mStart);
+
+        return new Frame(Frame.TYPE_COMMAND, payload);
+    }
+
+    private int indexOfDelimiter(int from) {
+        int last = mEnd - Frame.LEGACY_DELIMITER.length;
+        for (int i = from; i <= last; i++) {
+            if (mBuffer[i] != Frame.LEGACY_DELIMITER[0]) {
+                continue;
+            }
+
+            boolean match = true;
+            for (int j = 1; j < Frame.LEGACY_DELIMITER.length; j++) {
+                if (mBuffer[i + j] != Frame.LEGACY_DELIMITER[j]) {
+                    match = false;
+                    break;
+                }
+            }
+
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void consume(int length) {
+        mStart += length;
+        mScanPosition = mStart;
+
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+            mScanPosition = 0;
+        }
+    }
+
+    /** Makes room for length more bytes, compacting the buffer before growing it. */
+    private void ensureCapacity(int length) {
+        if (mEnd + length <= mBuffer.length) {
+            return;
+        }
+
+        int buffered = mEnd - mStart;
+        if (buffered + length <= mBuffer.length) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, buffered);
+        } else {
+            int newCapacity = Math.max(mBuffer.length * 2, buffered + length);
+            byte[] newBuffer = new byte[newCapacity];
+            System.arraycopy(mBuffer, mStart, newBuffer, 0, buffered);
+            mBuffer = newBuffer;
+        }
+
+        mScanPosition -= mStart;
+        mStart = 0;
+        mEnd = buffered;
+    }
+}
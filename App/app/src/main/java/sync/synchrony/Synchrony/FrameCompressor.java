@@ -0,0 +1,125 @@
+package sync.synchrony.Synchrony;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses frame payloads with deflate. Every frame is compressed on its
+ * own, so frames can still be handled independently, and a preset dictionary of the strings
+ * that appear in almost every sync record makes up for the small size of each frame.
+ *
+ * Deflater and Inflater aren't thread safe, so each socket thread keeps its own instance and
+ * must call end() once it is done with it.
+ */
+public class FrameCompressor {
+    // Payloads smaller than this aren't worth compressing.
+    public static final int COMPRESSION_THRESHOLD = 128;
+
+    // Name of the only compression method currently supported, used when negotiating.
+    public static final String METHOD_DEFLATE = "deflate";
+
+    // Strings that Gson emits for sync records, with the most common ones last since deflate
+    // can reach the end of the dictionary with the shortest distances.
+    private static final byte[] sDictionary = (
+            "\"mEmails\":{\"Home\":\"\"Work\":\"\"Other\":\"@gmail.com\"" +
+            "\"mDuration\":\"00:00:\"mDate\":\"Incoming\"Outgoing\"Missed\"" +
+            "incoming_call: incoming_contact: \"mHasPhoto\":false,\"mHasPhoto\":true," +
+            "\"mHash\":\"mPrimaryKey\":\"mName\":\"mPhones\":{\"Mobile\":\"" +
+            "\"mType\":\"Sent\",\"mType\":\"Received\",\"mRead\":1}\"mRead\":0}" +
+            "incoming_message: {\"mId\":\"mThreadId\":\"mNumber\":\"+1\"mDateSent\":\"mBody\":\"")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private Deflater mDeflater;
+    private Inflater mInflater;
+
+    // Reused output buffer for compressed payloads.
+    private byte[] mOutput = new byte[COMPRESSION_THRESHOLD];
+
+    /**
+     * Compresses length bytes of a payload starting at offset into this compressor's output
+     * buffer. Returns the compressed length, or -1 if compressing didn't make the payload any
+     * smaller.
+     */
+    public int compress(byte[] payload, int offset, int length) {
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+
+        mDeflater.reset();
+        mDeflater.setDictionary(sDictionary);
+        mDeflater.setInput(payload, offset, length);
+        mDeflater.finish();
+
+        int compressedLength = 0;
+        while (!mDeflater.finished()) {
+            if (compressedLength == mOutput.length) {
+                // Compressed output that is already as large as the input isn't worth sending.
+                if (compressedLength >= length) {
+                    return -1;
+                }
+                mOutput = Arrays.copyOf(mOutput, Math.min(mOutput.length * 2, length));
+            }
+            compressedLength += mDeflater.deflate(mOutput, compressedLength,
+                    mOutput.length - compressedLength);
+        }
+
+        return compressedLength < length ? compressedLength : -1;
+    }
+
+    /** Returns the buffer holding the output of the last call to compress. */
+    public byte[] getOutput() {
+        return mOutput;
+    }
+
+    /** Decompresses a payload that was compressed by a FrameCompressor on the other end. */
+    public byte[] decompress(byte[] payload) throws IOException {
+        if (mInflater == null) {
+            mInflater = new Inflater();
+        }
+
+        mInflater.reset();
+        mInflater.setInput(payload);
+
+        byte[] output = new byte[Math.max(payload.length * 4, COMPRESSION_THRESHOLD)];
+        int length = 0;
+        try {
+            while (!mInflater.finished()) {
+                if (length == output.length) {
+                    if (output.length >= Frame.MAX_PAYLOAD_SIZE) {
+                        throw new IOException("Decompressed frame exceeded the maximum size!");
+                    }
+                    output = Arrays.copyOf(output,
+                            Math.min(output.length * 2, Frame.MAX_PAYLOAD_SIZE));
+                }
+
+                int inflated = mInflater.inflate(output, length, output.length - length);
+                if (inflated == 0) {
+                    if (mInflater.needsDictionary()) {
+                        mInflater.setDictionary(sDictionary);
+                    } else if (mInflater.needsInput()) {
+                        throw new IOException("Compressed frame was truncated!");
+                    }
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Couldn't decompress frame!", e);
+        }
+
+        return Arrays.copyOf(output, length);
+    }
+
+    /** Frees the native memory held by the compressor. */
+    public void end() {
+        if (mDeflater != null) {
+            mDeflater.end();
+        }
+        if (mInflater != null) {
+            mInflater.end();
+        }
+    }
+}
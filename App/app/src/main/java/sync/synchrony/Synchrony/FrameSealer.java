@@ -0,0 +1,105 @@
+package sync.synchrony.Synchrony;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals or opens frame payloads with AES-GCM for one direction of a connection, once the client
+ * agrees to the ENCRYPTION capability and a KeyExchange has run. The frame's header is
+ * authenticated along with its payload, and a 16 byte tag is appended to every sealed payload.
+ *
+ * Nonces are never sent. Each direction has its own key, and the nonce is the number of frames
+ * sealed so far in that direction, since both sides see every frame in the same order. A frame
+ * that is lost, reordered or replayed therefore fails to open, which ends the connection.
+ *
+ * The Cipher is created once and reinitialized for every frame, and its output goes into a
+ * reused buffer, so sealing costs no allocations beyond what the provider itself does. Android's
+ * default provider uses the CPU's AES and carry-less multiply instructions where it has them.
+ *
+ * Not thread safe. Each socket thread owns the sealer for its own direction.
+ */
+public class FrameSealer {
+    // Size of the authentication tag appended to every sealed payload.
+    public static final int TAG_SIZE = 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_SIZE = 12;
+
+    private final Cipher mCipher;
+    private final SecretKeySpec mKey;
+    private final int mMode;
+    private final byte[] mNonce = new byte[NONCE_SIZE];
+
+    // Number of frames sealed or opened so far, which is the next frame's nonce.
+    private long mCounter = 0;
+
+    // Reused output buffer for sealed payloads.
+    private byte[] mOutput = new byte[1024];
+
+    private FrameSealer(byte[] key, int mode) throws GeneralSecurityException {
+        this.mCipher = Cipher.getInstance(TRANSFORMATION);
+        this.mKey = new SecretKeySpec(key, "AES");
+        this.mMode = mode;
+    }
+
+    /** Creates a sealer for frames sent with the given key. */
+    public static FrameSealer forSealing(byte[] key) throws GeneralSecurityException {
+        return new FrameSealer(key, Cipher.ENCRYPT_MODE);
+    }
+
+    /** Creates a sealer that opens frames received with the given key. */
+    public static FrameSealer forOpening(byte[] key) throws GeneralSecurityException {
+        return new FrameSealer(key, Cipher.DECRYPT_MODE);
+    }
+
+    /**
+     * Seals length bytes of a payload starting at offset into this sealer's output buffer,
+     * authenticating aadLength bytes of header along with it. Returns the sealed length, which
+     * is always length + TAG_SIZE.
+     */
+    public int seal(byte[] aad, int aadLength, byte[] payload, int offset, int length)
+            throws IOException {
+        return run(aad, aadLength, payload, offset, length, length + TAG_SIZE);
+    }
+
+    /**
+     * Opens a sealed payload into this sealer's output buffer, checking it against aadLength
+     * bytes of header. Returns the opened length, or throws if the frame was tampered with.
+     */
+    public int open(byte[] aad, int aadLength, byte[] payload, int offset, int length)
+            throws IOException {
+        if (length < TAG_SIZE) {
+            throw new IOException("Sealed payload is too short!");
+        }
+        return run(aad, aadLength, payload, offset, length, length - TAG_SIZE);
+    }
+
+    /** Returns the buffer that seal and open write into. Only valid until the next call. */
+    public byte[] getOutput() {
+        return mOutput;
+    }
+
+    private int run(byte[] aad, int aadLength, byte[] payload, int offset, int length,
+                    int outputLength) throws IOException {
+        if (mOutput.length < outputLength) {
+            mOutput = new byte[Math.max(mOutput.length * 2, outputLength)];
+        }
+
+        Frame.writeInt(mNonce, 4, (int) (mCounter >>> 32));
+        Frame.writeInt(mNonce, 8, (int) mCounter);
+        mCounter++;
+
+        try {
+            mCipher.init(mMode, mKey, new GCMParameterSpec(TAG_SIZE * 8, mNonce));
+            mCipher.updateAAD(aad, 0, aadLength);
+            return mCipher.doFinal(payload, offset, length, mOutput, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't " + (mMode == Cipher.ENCRYPT_MODE ? "seal" : "open") +
+                    " frame " + (mCounter - 1) + "!", e);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package sync.synchrony.Synchrony;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the single Gson instance used by the whole app. Every type that is sent to the client
+ * or persisted has a hand-written streaming TypeAdapter registered here, so encoding and
+ * decoding them never goes through reflection. Other types, such as the id lists and hash maps
+ * the client sends, use Gson's built-in adapters, which the shared instance only creates once.
+ *
+ * The adapters write the same keys, in the same order, as Gson's reflective adapters did, so
+ * the client and previously saved preferences see no difference.
+ */
+public class JsonCodec {
+    private static final Gson sGson = new GsonBuilder()
+            .registerTypeAdapter(Syncer.Message.class, new MessageAdapter())
+            .registerTypeAdapter(Syncer.Call.class, new CallAdapter())
+            .registerTypeAdapter(Syncer.Contact.class, new ContactAdapter())
+            .registerTypeAdapter(PairedPC.class, new PairedPCAdapter())
+            .create();
+
+    private JsonCodec() {}
+
+    public static Gson getGson() {
+        return sGson;
+    }
+
+    /** Writes a map of strings as a JSON object, leaving out null values like Gson does. */
+    private static void writeStringMap(JsonWriter out, Map<String, String> map)
+            throws IOException {
+        out.beginObject();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            out.name(entry.getKey()).value(entry.getValue());
+        }
+        out.endObject();
+    }
+
+    private static HashMap<String, String> readStringMap(JsonReader in) throws IOException {
+        HashMap<String, String> map = new HashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            map.put(key, nextStringOrNull(in));
+        }
+        in.endObject();
+        return map;
+    }
+
+    private static String nextStringOrNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static class MessageAdapter extends TypeAdapter<Syncer.Message> {
+        @Override
+        public void write(JsonWriter out, Syncer.Message message) throws IOException {
+            if (message == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("mId").value(message.getId());
+            out.name("mThreadId").value(message.getThreadId());
+            out.name("mNumber").value(message.getNumber());
+            out.name("mDateSent").value(message.getDateSent());
+            out.name("mType").value(message.getType());
+            out.name("mBody").value(message.getBody());
+            out.name("mRead").value(message.getRead());
+            out.endObject();
+        }
+
+        @Override
+        public Syncer.Message read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            Syncer.Message message = new Syncer.Message();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "mId":
+                        message.setId(in.nextLong());
+                        break;
+                    case "mThreadId":
+                        message.setThreadId(in.nextLong());
+                        break;
+                    case "mNumber":
+                        message.setNumber(nextStringOrNull(in));
+                        break;
+                    case "mDateSent":
+                        message.setDateSent(in.nextLong());
+                        break;
+                    case "mType":
+                        message.setType(nextStringOrNull(in));
+                        break;
+                    case "mBody":
+                        message.setBody(nextStringOrNull(in));
+                        break;
+                    case "mRead":
+                        message.setRead(in.nextInt());
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return message;
+        }
+    }
+
+    private static class CallAdapter extends TypeAdapter<Syncer.Call> {
+        @Override
+        public void write(JsonWriter out, Syncer.Call call) throws IOException {
+            if (call == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("mId").value(call.getId());
+            out.name("mNumber").value(call.getNumber());
+            out.name("mType").value(call.getType());
+            out.name("mDate").value(call.getDate());
+            out.name("mDuration").value(call.getDuration());
+            out.endObject();
+        }
+
+        @Override
+        public Syncer.Call read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            Syncer.Call call = new Syncer.Call();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "mId":
+                        call.setId(in.nextLong());
+                        break;
+                    case "mNumber":
+                        call.setNumber(nextStringOrNull(in));
+                        break;
+                    case "mType":
+                        call.setType(nextStringOrNull(in));
+                        break;
+                    case "mDate":
+                        call.setDate(nextStringOrNull(in));
+                        break;
+                    case "mDuration":
+                        call.setDuration(nextStringOrNull(in));
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return call;
+        }
+    }
+
+    private static class ContactAdapter extends TypeAdapter<Syncer.Contact> {
+        @Override
+        public void write(JsonWriter out, Syncer.Contact contact) throws IOException {
+            if (contact == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("mName").value(contact.getName());
+            out.name("mPhones");
+            writeStringMap(out, contact.getPhones());
+            out.name("mEmails");
+            writeStringMap(out, contact.getEmails());
+            out.name("mHasPhoto").value(contact.hasPhoto());
+            out.name("mHash").value(contact.getHash());
+            out.name("mPrimaryKey").value(contact.getPrimaryKey());
+            out.endObject();
+        }
+
+        @Override
+        public Syncer.Contact read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            String name = null;
+            HashMap<String, String> phones = new HashMap<>();
+            HashMap<String, String> emails = new HashMap<>();
+            long primaryKey = 0;
+            Integer hash = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "mName":
+                        name = nextStringOrNull(in);
+                        break;
+                    case "mPhones":
+                        phones = readStringMap(in);
+                        break;
+                    case "mEmails":
+                        emails = readStringMap(in);
+                        break;
+                    case "mHash":
+                        hash = in.nextInt();
+                        break;
+                    case "mPrimaryKey":
+                        primaryKey = in.nextLong();
+                        break;
+                    default:
+                        // The photo flag only comes from the photo, which isn't sent in JSON.
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+
+            Syncer.Contact contact = new Syncer.Contact(name);
+            contact.setPrimaryKey(primaryKey);
+            for (Map.Entry<String, String> phone : phones.entrySet()) {
+                contact.addPhone(phone.getKey(), phone.getValue());
+            }
+            for (Map.Entry<String, String> email : emails.entrySet()) {
+                contact.addEmail(email.getKey(), email.getValue());
+            }
+            if (hash != null) {
+                contact.setHash(hash);
+            } else {
+                contact.generateHash();
+            }
+            return contact;
+        }
+    }
+
+    /**
+     * Persists PairedPCs. mLastSync is written as epoch millis, but the date strings written by
+     * Gson's default Date adapter in earlier versions can still be read.
+     */
+    private static class PairedPCAdapter extends TypeAdapter<PairedPC> {
+        // Gson's built-in Date adapter, only used to read dates saved by earlier versions.
+        private final TypeAdapter<Date> mLegacyDateAdapter = new Gson().getAdapter(Date.class);
+
+        @Override
+        public void write(JsonWriter out, PairedPC pairedPC) throws IOException {
+            if (pairedPC == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("mPCName").value(pairedPC.getName());
+            out.name("mPCAddress").value(pairedPC.getAddress());
+            out.name("mPCType").value(pairedPC.getPCType());
+            out.name("connectAutomatically").value(pairedPC.isConnectingAutomatically());
+            if (pairedPC.getLastSync() != null) {
+                out.name("mLastSync").value(pairedPC.getLastSync().getTime());
+            }
+            out.name("mCurrentlySyncing").value(pairedPC.isCurrentlySyncing());
+            if (pairedPC.getPairingKey() != null) {
+                out.name("mPairingKey").value(
+                        Base64.getEncoder().encodeToString(pairedPC.getPairingKey()));
+            }
+            if (pairedPC.getServiceUuid() != null) {
+                out.name("mServiceUuid").value(pairedPC.getServiceUuid());
+            }
+            if (pairedPC.getMessageWatermark() != null) {
+                out.name("mMessageWatermark");
+                writeWatermark(out, pairedPC.getMessageWatermark());
+            }
+            if (pairedPC.getCallWatermark() != null) {
+                out.name("mCallWatermark");
+                writeWatermark(out, pairedPC.getCallWatermark());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public PairedPC read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            String name = null;
+            String address = null;
+            String pcType = null;
+            boolean connectAutomatically = true;
+            Date lastSync = null;
+            byte[] pairingKey = null;
+            String serviceUuid = null;
+            PairedPC.SyncWatermark messageWatermark = null;
+            PairedPC.SyncWatermark callWatermark = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "mPCName":
+                        name = nextStringOrNull(in);
+                        break;
+                    case "mPCAddress":
+                        address = nextStringOrNull(in);
+                        break;
+                    case "mPCType":
+                        pcType = nextStringOrNull(in);
+                        break;
+                    case "connectAutomatically":
+                        connectAutomatically = in.nextBoolean();
+                        break;
+                    case "mLastSync":
+                        if (in.peek() == JsonToken.NUMBER) {
+                            lastSync = new Date(in.nextLong());
+                        } else {
+                            lastSync = mLegacyDateAdapter.read(in);
+                        }
+                        break;
+                    case "mPairingKey":
+                        String encodedKey = nextStringOrNull(in);
+                        pairingKey = encodedKey != null ?
+                                Base64.getDecoder().decode(encodedKey) : null;
+                        break;
+                    case "mServiceUuid":
+                        serviceUuid = nextStringOrNull(in);
+                        break;
+                    case "mMessageWatermark":
+                        messageWatermark = readWatermark(in);
+                        break;
+                    case "mCallWatermark":
+                        callWatermark = readWatermark(in);
+                        break;
+                    default:
+                        // A sync can't still be running when the preferences are loaded.
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+
+            PairedPC pairedPC = new PairedPC(name, address, pcType);
+            pairedPC.setConnectionAutomatically(connectAutomatically);
+            pairedPC.setLastSync(lastSync);
+            pairedPC.setPairingKey(pairingKey);
+            pairedPC.setServiceUuid(serviceUuid);
+            pairedPC.setMessageWatermark(messageWatermark);
+            pairedPC.setCallWatermark(callWatermark);
+            return pairedPC;
+        }
+
+        private static void writeWatermark(JsonWriter out, PairedPC.SyncWatermark watermark)
+                throws IOException {
+            out.beginObject();
+            out.name("mMaxId").value(watermark.getMaxId());
+            out.name("mMaxDate").value(watermark.getMaxDate());
+            out.name("mLastReconcile").value(watermark.getLastReconcile());
+            out.endObject();
+        }
+
+        private static PairedPC.SyncWatermark readWatermark(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            long maxId = -1;
+            long maxDate = -1;
+            long lastReconcile = 0;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "mMaxId":
+                        maxId = in.nextLong();
+                        break;
+                    case "mMaxDate":
+                        maxDate = in.nextLong();
+                        break;
+                    case "mLastReconcile":
+                        lastReconcile = in.nextLong();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+
+            return new PairedPC.SyncWatermark(maxId, maxDate, lastReconcile);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package sync.synchrony.Synchrony;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Agrees on the keys a connection's frames are sealed with. Each side makes a fresh P-256 key
+ * pair for every connection and sends its public key, X.509 encoded as base64, and both derive
+ * the same keys from the ECDH secret with HKDF-SHA256.
+ *
+ * The HKDF salt is the pairing key kept in the PairedPC, so that a connection is only keyed
+ * correctly by the PC it was first set up with. The first encrypted connection to a PC has no
+ * pairing key yet and uses an empty salt, and both sides then save the pairing key derived from
+ * it. Each side sends a fingerprint of its pairing key, or "-" if it has none, so a mismatch is
+ * caught before any frame is sealed.
+ *
+ * Every key is expanded with a label followed by the phone's and then the client's public key,
+ * so the keys are bound to this exchange.
+ */
+public class KeyExchange {
+    // Size of each derived key. AES-256 for the frame keys.
+    private static final int KEY_SIZE = 32;
+
+    // Labels for the keys derived from each exchange.
+    private static final String PHONE_TO_CLIENT_LABEL = "synchrony phone to client";
+    private static final String CLIENT_TO_PHONE_LABEL = "synchrony client to phone";
+    private static final String PAIRING_LABEL = "synchrony pairing";
+
+    private final KeyPair mKeyPair;
+
+    // Set once derive succeeds.
+    private byte[] mSendKey;
+    private byte[] mReceiveKey;
+    private byte[] mPairingKey;
+
+    public KeyExchange() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        mKeyPair = generator.generateKeyPair();
+    }
+
+    /** Returns this side's public key as sent to the client. */
+    public String getPublicKey() {
+        return Base64.getEncoder().encodeToString(mKeyPair.getPublic().getEncoded());
+    }
+
+    /**
+     * Derives the connection's keys from the client's public key and the PC's pairing key,
+     * which is null if the PC hasn't been keyed before.
+     */
+    public void derive(String clientPublicKey, byte[] pairingKey)
+            throws GeneralSecurityException {
+        byte[] clientKeyBytes;
+        try {
+            clientKeyBytes = Base64.getDecoder().decode(clientPublicKey);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Client public key isn't base64!", e);
+        }
+        PublicKey clientKey = KeyFactory.getInstance("EC")
+                .generatePublic(new X509EncodedKeySpec(clientKeyBytes));
+
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(mKeyPair.getPrivate());
+        agreement.doPhase(clientKey, true);
+        byte[] secret = agreement.generateSecret();
+
+        byte[] pseudoRandomKey = hmac(pairingKey != null ? pairingKey : new byte[KEY_SIZE],
+                secret);
+        byte[] publicKeys = concat(mKeyPair.getPublic().getEncoded(), clientKeyBytes);
+        mSendKey = expand(pseudoRandomKey, PHONE_TO_CLIENT_LABEL, publicKeys);
+        mReceiveKey = expand(pseudoRandomKey, CLIENT_TO_PHONE_LABEL, publicKeys);
+        mPairingKey = pairingKey != null ? pairingKey :
+                expand(pseudoRandomKey, PAIRING_LABEL, publicKeys);
+    }
+
+    /** Returns the key frames sent to the client are sealed with. */
+    public byte[] getSendKey() {
+        return mSendKey;
+    }
+
+    /** Returns the key frames from the client are opened with. */
+    public byte[] getReceiveKey() {
+        return mReceiveKey;
+    }
+
+    /** Returns the pairing key to keep for the PC, which is new if it didn't have one. */
+    public byte[] getPairingKey() {
+        return mPairingKey;
+    }
+
+    /** Returns a short fingerprint of a pairing key, or "-" if there is none. */
+    public static String fingerprint(byte[] pairingKey) {
+        if (pairingKey == null) {
+            return "-";
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(pairingKey);
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException e) {
+            // Every Android version has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** HKDF-Expand for a single block, which is all a 32 byte key needs. */
+    private static byte[] expand(byte[] pseudoRandomKey, String label, byte[] context)
+            throws GeneralSecurityException {
+        byte[] info = concat(label.getBytes(StandardCharsets.UTF_8), context);
+        return hmac(pseudoRandomKey, concat(info, new byte[]{1}));
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = new byte[first.length + second.length];
+        System.arraycopy(first, 0, bytes, 0, first.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,329 @@
+package sync.synchrony.Synchrony;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Upgrades a connection so that its bulk traffic, sync records and file chunks, goes over a
+ * TCP socket on the local network once the client agrees to the LAN_TRANSPORT capability.
+ * Bluetooth stays the connection's control channel, and carries everything else.
+ *
+ * The phone listens on a port of its choosing and sends "lan_offer: <port> <token>
+ * <addresses>" over Bluetooth, where addresses is a comma separated list of its IPv4
+ * addresses on the local network, ending with the loopback address so the upgrade can also be
+ * tested through a port forward. The client connects to whichever it can reach and sends
+ * "lan_hello", or says "lan_unavailable" over Bluetooth if it can't reach any.
+ *
+ * The socket listens on every interface, since the offered addresses and loopback all share
+ * its one port. Anything else on the network can therefore connect to it too, so connections
+ * are taken one at a time until one says hello in a frame that opens, and the rest are dropped.
+ *
+ * The token is 32 random bytes, base64 encoded, and is only ever sent over Bluetooth, which is
+ * itself sealed once the connection is encrypted. Both sides derive a key for each direction
+ * from it with HMAC-SHA256, and every frame on the socket is sealed with a FrameSealer from
+ * the first one. A peer that doesn't have the token can't produce a frame that opens, so the
+ * socket is dropped on its first frame.
+ *
+ * Frames read from the socket are handed to the connection thread along with those read over
+ * Bluetooth. The connection thread decides which frames are sent over the socket. If the socket
+ * drops, bulk traffic goes back to Bluetooth. Anything still queued for the socket is lost,
+ * which the next sync and the file transfers' own resends make up for.
+ */
+public class LanTransport extends Thread {
+    private static final String TAG = "LanTransport";
+    private final String mDeviceTag;
+
+    // How long the client has to connect and say hello after the offer is sent.
+    public static final int CONNECT_TIMEOUT = 10 * 1000;
+
+    // How long each connection has to say hello before it is dropped for the next one.
+    private static final int HELLO_TIMEOUT = 2 * 1000;
+
+    // Connections waiting to be accepted while another one is being checked.
+    private static final int ACCEPT_BACKLOG = 4;
+
+    // Size of the token the socket's keys are derived from.
+    private static final int TOKEN_SIZE = 32;
+
+    // Labels for the keys derived from the token.
+    private static final String PHONE_TO_CLIENT_LABEL = "synchrony lan phone to client";
+    private static final String CLIENT_TO_PHONE_LABEL = "synchrony lan client to phone";
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final BluetoothConnectionThread mConnectionThread;
+
+    // The connection thread's frame queue, which frames read from the socket are passed on to.
+    private final BlockingQueue<Frame> mFrameQueue;
+
+    private final boolean mCompressionEnabled;
+
+    private volatile ServerSocket mServerSocket;
+    private volatile Socket mSocket;
+    private SocketReader mSocketReader;
+    private volatile SocketWriter mSocketWriter;
+
+    // Set once the client has said hello over the socket, until the socket drops.
+    private volatile boolean mActive = false;
+
+    // Released once the client has either connected or given up.
+    private final CountDownLatch mSettled = new CountDownLatch(1);
+
+    public LanTransport(BluetoothConnectionThread connectionThread, BlockingQueue<Frame> frameQueue,
+                        boolean compressionEnabled, String deviceTag) {
+        super("LanTransport " + deviceTag);
+        this.mConnectionThread = connectionThread;
+        this.mFrameQueue = frameQueue;
+        this.mCompressionEnabled = compressionEnabled;
+        this.mDeviceTag = deviceTag;
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean connected = connect();
+            mActive = connected;
+            mSettled.countDown();
+            if (connected) {
+                Log.d(TAG, String.format("run: " +
+                        "Bulk traffic for device: %s now goes over the local network!",
+                        mDeviceTag));
+                forwardFrames();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, String.format("run: " +
+                    "Local network socket for device: %s closed: %s", mDeviceTag,
+                    e.getMessage()));
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, String.format("run: " +
+                    "Couldn't key local network socket for device: %s!", mDeviceTag), e);
+        } catch (InterruptedException e) {
+            Log.d(TAG, String.format("run: " +
+                    "Local network transport interrupted for device: %s!", mDeviceTag));
+        } finally {
+            close();
+            mSettled.countDown();
+            mConnectionThread.onLanTransportClosed(this);
+        }
+    }
+
+    /**
+     * Stops the transport, whether it is still waiting for the client or already carrying
+     * traffic. Bulk traffic goes back to Bluetooth.
+     */
+    public void cancel() {
+        interrupt();
+        // Neither accept nor a socket read notice interrupts, but both end once closed.
+        closeQuietly(mServerSocket);
+        closeQuietly(mSocket);
+    }
+
+    /** Returns whether the client is connected and the socket can carry traffic. */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Waits up to timeout milliseconds for the client to connect or give up. Returns whether
+     * the socket can carry traffic.
+     */
+    public boolean awaitActive(long timeout) throws InterruptedException {
+        mSettled.await(timeout, TimeUnit.MILLISECONDS);
+        return mActive;
+    }
+
+    /**
+     * Queues a frame on the socket. Returns false if the socket is no longer usable, in which
+     * case the frame should go over Bluetooth instead.
+     */
+    public boolean send(Frame frame) {
+        SocketWriter socketWriter = mSocketWriter;
+        return mActive && socketWriter != null && socketWriter.send(frame);
+    }
+
+    /** Returns the estimator measuring the socket, or null if it isn't connected yet. */
+    public LinkEstimator getLinkEstimator() {
+        SocketWriter socketWriter = mSocketWriter;
+        return mActive && socketWriter != null ? socketWriter.getLinkEstimator() : null;
+    }
+
+    /**
+     * Offers the socket to the client and accepts connections until one says hello. Returns
+     * false if none does in time.
+     */
+    private boolean connect() throws IOException, GeneralSecurityException,
+            InterruptedException {
+        byte[] token = new byte[TOKEN_SIZE];
+        sRandom.nextBytes(token);
+
+        mServerSocket = new ServerSocket(0, ACCEPT_BACKLOG);
+        mConnectionThread.sendCommand(Channel.CONTROL, String.format("lan_offer: %d %s %s",
+                mServerSocket.getLocalPort(), Base64.getEncoder().encodeToString(token),
+                String.join(",", getLocalAddresses())));
+
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (!isInterrupted()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+
+            mServerSocket.setSoTimeout((int) remaining);
+            try {
+                mSocket = mServerSocket.accept();
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+
+            if (awaitHello(token, Math.min(remaining, HELLO_TIMEOUT))) {
+                mServerSocket.close();
+                return mSocketWriter.send(Frame.command(Channel.CONTROL, "lan_ready"));
+            }
+
+            Log.w(TAG, String.format("connect: " +
+                    "Dropping connection from %s that didn't say hello for device: %s!",
+                    mSocket.getRemoteSocketAddress(), mDeviceTag));
+            closeSocket();
+        }
+
+        Log.w(TAG, String.format("connect: " +
+                "No hello over the local network from device: %s!", mDeviceTag));
+        return false;
+    }
+
+    /**
+     * Sets up the reader and writer for a connection that was just accepted, and waits up to
+     * timeout milliseconds for its first frame. Returns whether that frame opened with the
+     * token's key and was a hello.
+     */
+    private boolean awaitHello(byte[] token, long timeout) throws IOException,
+            GeneralSecurityException, InterruptedException {
+        mSocket.setTcpNoDelay(true);
+
+        Transport transport = Transport.of(mSocket);
+        mSocketReader = new SocketReader(transport, new FlowControl(), mDeviceTag);
+        mSocketReader.setFrameOpener(FrameSealer.forOpening(deriveKey(token,
+                CLIENT_TO_PHONE_LABEL)));
+        mSocketReader.requireSealedFrames();
+
+        SocketWriter socketWriter = new SocketWriter(transport, mSocketReader, new FlowControl(),
+                this, mDeviceTag);
+        socketWriter.setFrameSealer(FrameSealer.forSealing(deriveKey(token,
+                PHONE_TO_CLIENT_LABEL)));
+        socketWriter.setChannelsEnabled(true);
+        socketWriter.setCompressionEnabled(mCompressionEnabled);
+        mSocketWriter = socketWriter;
+
+        mSocketReader.start();
+        socketWriter.start();
+
+        // A frame that doesn't open ends the reader's stream, which is never a hello.
+        Frame hello = mSocketReader.getFrameQueue().poll(Math.max(timeout, 1),
+                TimeUnit.MILLISECONDS);
+        return hello != null && hello.getType() == Frame.TYPE_COMMAND &&
+                hello.getCommand().trim().equals("lan_hello");
+    }
+
+    /** Passes frames read from the socket on to the connection thread until it drops. */
+    private void forwardFrames() throws InterruptedException {
+        while (!isInterrupted()) {
+            Frame frame = mSocketReader.getFrameQueue().take();
+            if (frame == SocketReader.END_OF_STREAM) {
+                return;
+            }
+            mFrameQueue.put(frame);
+        }
+    }
+
+    private void close() {
+        mActive = false;
+        closeQuietly(mServerSocket);
+        closeSocket();
+    }
+
+    /** Closes the accepted socket along with its reader and writer, if there is one. */
+    private void closeSocket() {
+        closeQuietly(mSocket);
+
+        if (mSocketReader != null) {
+            mSocketReader.interrupt();
+        }
+
+        SocketWriter socketWriter = mSocketWriter;
+        if (socketWriter != null) {
+            int dropped = socketWriter.close();
+            socketWriter.interrupt();
+            Log.d(TAG, String.format("closeSocket: " +
+                    "Closed local network socket for device: %s, dropped %d frames!",
+                    mDeviceTag, dropped));
+        }
+
+        mSocketReader = null;
+        mSocketWriter = null;
+    }
+
+    /** Returns the phone's IPv4 addresses on the local network, followed by loopback. */
+    private static ArrayList<String> getLocalAddresses() {
+        ArrayList<String> addresses = new ArrayList<>();
+        try {
+            for (NetworkInterface networkInterface :
+                    Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+
+                for (InetAddress address :
+                        Collections.list(networkInterface.getInetAddresses())) {
+                    if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                        addresses.add(address.getHostAddress());
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            Log.w(TAG, "getLocalAddresses: Couldn't list network interfaces!", e);
+        }
+
+        addresses.add(InetAddress.getLoopbackAddress().getHostAddress());
+        return addresses;
+    }
+
+    private static byte[] deriveKey(byte[] token, String label)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(token, "HmacSHA256"));
+        return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed, or closing it failed, either way it's of no further use.
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package sync.synchrony.Synchrony;
+
+/**
+ * Estimates a connection's throughput from its own traffic, and turns it into the sizes the rest of the connection works with, so a sync adapts to the radio instead
+ * of being tuned for one kind of link. A Bluetooth link can do anything from about 30 KB/s on
+ * a crowded 2.4 GHz band to over 200 KB/s.
+ *
+ * Throughput is sampled from batches the writer thread pushes through the socket. Writes block
+ * once the socket's buffers are full, so large batches are written at the link's pace. Small
+ * batches only reach the buffers and are ignored. The throughput is smoothed with an
+ * exponentially weighted moving average, and can be read from any thread.
+ */
+public class LinkEstimator {
+    // Throughput assumed until the first sample, in bytes per second.
+    private static final double INITIAL_THROUGHPUT = 64 * 1024;
+
+    // Smallest batch written that counts as a throughput sample.
+    private static final int MIN_SAMPLE_BYTES = 16 * 1024;
+
+    // Weight of each new sample in the moving average.
+    private static final double THROUGHPUT_GAIN = 0.25;
+
+    // A record batch should take about this long to send, in seconds. Larger batches save
+    // per-frame overhead on a fast link, smaller ones keep each frame quick on a slow one.
+    private static final double BATCH_DURATION = 0.1;
+    private static final int MIN_BATCH_SIZE = 1024;
+    private static final int MAX_BATCH_SIZE = 32 * 1024;
+
+    // A fragment should take about this long to send, in seconds, since anything urgent may
+    // have to wait for the fragment in front of it.
+    private static final double FRAGMENT_DURATION = 0.04;
+    private static final int MIN_FRAGMENT_SIZE = 2 * 1024;
+
+    // Below these throughputs, in bytes per second, contact photos are re-encoded at a lower
+    // JPEG quality before being sent.
+    private static final double SLOW_LINK = 48 * 1024;
+    private static final double MODERATE_LINK = 96 * 1024;
+
+    // JPEG quality for photos on each kind of link. FULL_PHOTO_QUALITY sends the photo as is.
+    public static final int FULL_PHOTO_QUALITY = 100;
+    private static final int MODERATE_PHOTO_QUALITY = 75;
+    private static final int SLOW_PHOTO_QUALITY = 50;
+
+    private final OutboundQueue mOutboundQueue;
+
+    private volatile double mThroughput = INITIAL_THROUGHPUT;
+
+    public LinkEstimator(OutboundQueue outboundQueue) {
+        this.mOutboundQueue = outboundQueue;
+    }
+
+    /** Records a batch the writer pushed through the socket, and how long it took. */
+    public void onBatchWritten(long bytes, long nanos) {
+        if (bytes < MIN_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+
+        double sample = bytes * 1e9 / nanos;
+        mThroughput += THROUGHPUT_GAIN * (sample - mThroughput);
+    }
+
+    /** Returns the estimated throughput in bytes per second. */
+    public double getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * Returns how many bytes of records to put in each batch. Batches shrink to the minimum
+     * while anything more urgent than a sync is waiting, so it never waits behind a big one.
+     */
+    public int getBatchSize() {
+        if (mOutboundQueue.hasUrgentFrames()) {
+            return MIN_BATCH_SIZE;
+        }
+        return clamp(mThroughput * BATCH_DURATION, MIN_BATCH_SIZE, MAX_BATCH_SIZE);
+    }
+
+    /** Returns the largest payload to write as one fragment, at most maxFragmentSize. */
+    public int getFragmentSize(int maxFragmentSize) {
+        // Whole kilobytes, so that file chunks sized from it stay the same between samples.
+        int size = clamp(mThroughput * FRAGMENT_DURATION, MIN_FRAGMENT_SIZE, maxFragmentSize);
+        return Math.max(MIN_FRAGMENT_SIZE, size / 1024 * 1024);
+    }
+
+    /** Returns the JPEG quality to send contact photos at. */
+    public int getPhotoQuality() {
+        if (mThroughput < SLOW_LINK) {
+            return SLOW_PHOTO_QUALITY;
+        } else if (mThroughput < MODERATE_LINK) {
+            return MODERATE_PHOTO_QUALITY;
+        }
+        return FULL_PHOTO_QUALITY;
+    }
+
+    private static int clamp(double value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+}
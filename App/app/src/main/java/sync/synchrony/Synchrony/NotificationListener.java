@@ -3,10 +3,10 @@ package sync.synchrony.Synchrony;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.os.Bundle;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 
-import com.google.gson.Gson;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -20,10 +20,9 @@ public class NotificationListener extends NotificationListenerService {
         if (!postedNotificationHashes.contains(sbn.getId()) && !sbn.isOngoing()) {
             postedNotificationHashes.add(sbn.getNotification().extras.toString().hashCode());
 
-            HashMap<String, Object> notificationDetails = getNotificationDetails(sbn);
+            HashMap<String, String> notificationDetails = getNotificationDetails(sbn);
 
-            Gson gson = new Gson();
-            broadcastNotificationDetails(gson.toJson(notificationDetails));
+            broadcastNotificationDetails(JsonCodec.getGson().toJson(notificationDetails));
         }
     }
 
@@ -31,8 +30,8 @@ public class NotificationListener extends NotificationListenerService {
      * Gets the pertinent details of the notification for the app and puts them into
      * a hash map.
      */
-    public HashMap<String, Object> getNotificationDetails(StatusBarNotification sbn) {
-        HashMap<String, Object> notificationDetails = new HashMap<>();
+    public HashMap<String, String> getNotificationDetails(StatusBarNotification sbn) {
+        HashMap<String, String> notificationDetails = new HashMap<>();
         PackageManager packageManager = getApplicationContext().getPackageManager();
         try {
             ApplicationInfo appInfo = packageManager.getApplicationInfo(
@@ -43,14 +42,21 @@ public class NotificationListener extends NotificationListenerService {
             notificationDetails.put("appName", "Unknown");
         }
 
-        notificationDetails.put("title", sbn.getNotification().extras.get("android.title"));
-        notificationDetails.put("subText", sbn.getNotification().extras.get("android.subText"));
-        notificationDetails.put("text", sbn.getNotification().extras.get("android.text"));
-        notificationDetails.put("infoText", sbn.getNotification().extras.get("android.infoText"));
+        // Extras are CharSequences that may carry styling spans, so only their text is kept.
+        Bundle extras = sbn.getNotification().extras;
+        notificationDetails.put("title", getExtraText(extras, "android.title"));
+        notificationDetails.put("subText", getExtraText(extras, "android.subText"));
+        notificationDetails.put("text", getExtraText(extras, "android.text"));
+        notificationDetails.put("infoText", getExtraText(extras, "android.infoText"));
 
         return notificationDetails;
     }
 
+    private static String getExtraText(Bundle extras, String key) {
+        Object extra = extras.get(key);
+        return extra != null ? extra.toString() : null;
+    }
+
     @Override
     public void onNotificationRemoved(StatusBarNotification sbn) {
         postedNotificationHashes.remove((Integer) sbn.toString().hashCode());
@@ -0,0 +1,296 @@
+package sync.synchrony.Synchrony;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of frames waiting to be written to a sync socket, split into priority lanes. Frames are
+ * taken with weighted round robin scheduling: higher lanes get more turns per round, but every
+ * waiting lane gets at least one turn, so a bulk sync still makes progress while notifications
+ * and clipboard commands skip ahead of it.
+ */
+public class OutboundQueue {
+    // Priority lanes, from highest to lowest.
+    // Commands the user is actively waiting on, such as clipboard and replies to the client.
+    public static final int PRIORITY_INTERACTIVE = 0;
+    // Events that should be mirrored as they happen, such as notifications.
+    public static final int PRIORITY_REALTIME = 1;
+    // Sync records, which can be large and numerous but aren't time sensitive.
+    public static final int PRIORITY_BULK = 2;
+
+    private static final int LANE_COUNT = 3;
+
+    // Number of frames each lane may take per scheduling round.
+    private static final int[] sLaneWeights = {8, 4, 1};
+
+    // Max number of frames waiting in each lane.
+    private static final int[] sLaneCapacities = {64, 256, 512};
+
+    private final ArrayList<ArrayDeque<Frame>> mLanes = new ArrayList<>(LANE_COUNT);
+    private final int[] mLaneCredits = new int[LANE_COUNT];
+
+    // Frames that go out before anything in the lanes, such as frames being resent after a
+    // reconnect.
+    private final ArrayDeque<Frame> mFirst = new ArrayDeque<>();
+
+    // Tasks the writer runs before taking its next frame. Used to change connection state on
+    // the writer thread, between two frames.
+    private final ArrayDeque<Runnable> mWriterTasks = new ArrayDeque<>();
+
+    // Set by FlowControl while the client has no credit left for more sync records.
+    private boolean mBulkPaused = false;
+
+    // Set once the queue's writer is gone, after which nothing more is queued.
+    private boolean mClosed = false;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+
+    public OutboundQueue() {
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            mLanes.add(new ArrayDeque<>());
+            mLaneCredits[lane] = sLaneWeights[lane];
+        }
+    }
+
+    /**
+     * Queues a frame, blocking while its lane is full. Returns false if the queue was closed
+     * instead.
+     */
+    public boolean put(Frame frame, int priority) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (!mClosed && mLanes.get(priority).size() >= sLaneCapacities[priority]) {
+                mNotFull.await();
+            }
+            if (mClosed) {
+                return false;
+            }
+
+            mLanes.get(priority).addLast(frame);
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Queues a frame without blocking. Returns false if its lane is full or it is closed. */
+    public boolean offer(Frame frame, int priority) {
+        mLock.lock();
+        try {
+            if (mClosed || mLanes.get(priority).size() >= sLaneCapacities[priority]) {
+                return false;
+            }
+
+            mLanes.get(priority).addLast(frame);
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a frame at the front of its lane, ignoring the lane's capacity. Used for the rest
+     * of a payload that was split into fragments, so nothing else in the lane gets ahead of it.
+     */
+    public void putFront(Frame frame, int priority) {
+        mLock.lock();
+        try {
+            mLanes.get(priority).addFirst(frame);
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queues frames to be written before anything in the lanes, keeping their order. These
+     * frames are written as they are and never get a new sequence number.
+     */
+    public void putFirst(Iterable<Frame> frames) {
+        mLock.lock();
+        try {
+            for (Frame frame : frames) {
+                mFirst.addLast(frame);
+            }
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Queues a task for the writer to run before it takes its next frame. */
+    public void runOnWriter(Runnable task) {
+        mLock.lock();
+        try {
+            mWriterTasks.addLast(task);
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Pauses or resumes the bulk lane. While paused, bulk frames stay queued and producers
+     * block once the lane fills up.
+     */
+    public void setBulkPaused(boolean bulkPaused) {
+        mLock.lock();
+        try {
+            mBulkPaused = bulkPaused;
+            if (!bulkPaused) {
+                mNotEmpty.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drops every queued frame and refuses any more, waking producers blocked on a full lane.
+     * Returns the number of frames dropped.
+     */
+    public int close() {
+        mLock.lock();
+        try {
+            int dropped = mFirst.size();
+            mFirst.clear();
+            for (ArrayDeque<Frame> lane : mLanes) {
+                dropped += lane.size();
+                lane.clear();
+            }
+            mClosed = true;
+            mNotFull.signalAll();
+            return dropped;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns whether any frame more urgent than a bulk one is waiting to be written. */
+    public boolean hasUrgentFrames() {
+        mLock.lock();
+        try {
+            return !mFirst.isEmpty() || !mLanes.get(PRIORITY_INTERACTIVE).isEmpty() ||
+                    !mLanes.get(PRIORITY_REALTIME).isEmpty();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Takes the next frame to write, blocking until one is queued. */
+    public Entry take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Entry entry;
+            while ((entry = nextLocked()) == null) {
+                mNotEmpty.await();
+            }
+            return entry;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Takes the next frame to write, or returns null if nothing is queued. */
+    public Entry poll() {
+        mLock.lock();
+        try {
+            return nextLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Entry nextLocked() {
+        if (!mWriterTasks.isEmpty()) {
+            return new Entry(mWriterTasks.pollFirst());
+        }
+
+        if (!mFirst.isEmpty()) {
+            return new Entry(mFirst.pollFirst(), PRIORITY_INTERACTIVE, true);
+        }
+
+        int lane = pickLane();
+        if (lane == -1) {
+            // Every waiting lane has used its turns for this round, so start a new round.
+            for (int i = 0; i < LANE_COUNT; i++) {
+                mLaneCredits[i] = sLaneWeights[i];
+            }
+            lane = pickLane();
+        }
+
+        if (lane == -1) {
+            return null;
+        }
+
+        mLaneCredits[lane]--;
+        Frame frame = mLanes.get(lane).pollFirst();
+        mNotFull.signalAll();
+        return new Entry(frame, lane, false);
+    }
+
+    /**
+     * Returns the highest priority lane with frames waiting and turns left, or -1 if none.
+     * The bulk lane is skipped while it is paused.
+     */
+    private int pickLane() {
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            if (lane == PRIORITY_BULK && mBulkPaused) {
+                continue;
+            }
+
+            if (!mLanes.get(lane).isEmpty() && mLaneCredits[lane] > 0) {
+                return lane;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A frame taken from the queue along with the lane it was queued in, or a task for the
+     * writer to run.
+     */
+    public static class Entry {
+        private final Frame mFrame;
+        private final int mPriority;
+        private final boolean mQueuedFirst;
+        private final Runnable mTask;
+
+        Entry(Frame frame, int priority, boolean queuedFirst) {
+            this.mFrame = frame;
+            this.mPriority = priority;
+            this.mQueuedFirst = queuedFirst;
+            this.mTask = null;
+        }
+
+        Entry(Runnable task) {
+            this.mFrame = null;
+            this.mPriority = PRIORITY_INTERACTIVE;
+            this.mQueuedFirst = false;
+            this.mTask = task;
+        }
+
+        public Frame getFrame() {
+            return mFrame;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /** Returns whether the frame was queued with putFirst. */
+        public boolean isQueuedFirst() {
+            return mQueuedFirst;
+        }
+
+        public Runnable getTask() {
+            return mTask;
+        }
+    }
+}
@@ -4,15 +4,12 @@ import android.app.Activity;
 import android.content.BroadcastReceiver;
 import android.content.ClipData;
 import android.content.ClipboardManager;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.SystemClock;
-import android.provider.OpenableColumns;
 import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.TextView;
@@ -26,7 +23,6 @@ import androidx.core.content.FileProvider;
 
 import com.example.Synchrony.R;
 
-import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -49,6 +45,12 @@ public class PCDetailsActivity extends AppCompatActivity {
     // Constant used to obtain clipboard text from PCDetailsActivity.
     public static final String CLIPBOARD_KEY = "clipboardKey";
 
+    // Constant used to tell BluetoothConnectionThread to send a file to the client device.
+    public static final String SEND_FILE_ACTION = "sendFileAction";
+
+    // Constant used to obtain the Uri of the file to send from PCDetailsActivity.
+    public static final String FILE_URI_KEY = "fileUriKey";
+
     // Associated PairedPC variable.
     private PairedPC mPairedPC;
 
@@ -147,6 +149,14 @@ public class PCDetailsActivity extends AppCompatActivity {
         context.sendBroadcast(sendClipboardIntent);
     }
 
+    public static void broadcastFile(Context context, String pcAddress, Uri fileUri) {
+        Intent sendFileIntent = new Intent();
+        sendFileIntent.setAction(SEND_FILE_ACTION);
+        sendFileIntent.putExtra(Utils.RECIPIENT_ADDRESS_KEY, pcAddress);
+        sendFileIntent.putExtra(FILE_URI_KEY, fileUri);
+        context.sendBroadcast(sendFileIntent);
+    }
+
     private void initializeUi() {
         TextView pcNameText = findViewById(R.id.pcNameText);
         TextView pcAddressText = findViewById(R.id.pcAddressText);
@@ -251,30 +261,10 @@ public class PCDetailsActivity extends AppCompatActivity {
                         new ActivityResultContracts.StartActivityForResult(), result -> {
                             if (result.getResultCode() == Activity.RESULT_OK) {
                                 if (result.getData() != null) {
-                                    Thread fileSendThread = new Thread(() -> {
-                                        Uri fileUri = result.getData().getData();
-
-                                        Cursor cursor = getContentResolver().query(fileUri,
-                                                null, null,
-                                                null, null);
-                                        int nameIndex = cursor.getColumnIndex(
-                                                OpenableColumns.DISPLAY_NAME);
-                                        cursor.moveToFirst();
-                                        String fileName = cursor.getString(nameIndex);
-                                        cursor.close();
-
-                                        Intent intent = new Intent();
-                                        intent.setAction(Intent.ACTION_SEND);
-                                        intent.setComponent(new ComponentName(
-                                                "com.android.bluetooth",
-                                                "com.android.bluetooth.opp.BluetoothOppLauncherActivity"));
-                                        intent.setType("*/*");
-                                        File file = new File(fileUri.getPath());
-                                        intent.putExtra(Intent.EXTRA_STREAM, fileUri);
-                                        startActivity(intent);
-
-                                    });
-                                    fileSendThread.start();
+                                    // The connection sends the file itself, or hands it to
+                                    // Bluetooth OPP if the client can't receive it.
+                                    broadcastFile(this, mPairedPC.getAddress(),
+                                            result.getData().getData());
                                 }
                             }
                         }
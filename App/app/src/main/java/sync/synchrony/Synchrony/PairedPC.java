@@ -28,6 +28,18 @@ public class PairedPC {
 
     private boolean mCurrentlySyncing = false;
 
+    // Key the PC's connections are keyed with, set by its first encrypted connection. See
+    // KeyExchange.
+    private byte[] mPairingKey;
+
+    // UUID of the PC's own service record, which the phone dials to reconnect without waiting
+    // for the PC. Null until the PC has sent it.
+    private String mServiceUuid;
+
+    // Newest messages and calls the PC has been sent. Null until the first full sync of each.
+    private SyncWatermark mMessageWatermark;
+    private SyncWatermark mCallWatermark;
+
     public PairedPC(String pcName, String pcAddress, BluetoothDevice bluetoothDevice) {
         // PCName and PCAddress are assigned this way because they become null upon
         // reboot of the app when assigned directly from the device.
@@ -44,6 +56,13 @@ public class PairedPC {
         }
     }
 
+    /** Creates a PairedPC from saved values, without needing the Bluetooth device. */
+    public PairedPC(String pcName, String pcAddress, String pcType) {
+        this.mPCName = pcName;
+        this.mPCAddress = pcAddress;
+        this.mPCType = pcType;
+    }
+
     public String getName() {
         return mPCName;
     }
@@ -88,6 +107,38 @@ public class PairedPC {
         this.mLastSync = lastSync;
     }
 
+    public byte[] getPairingKey() {
+        return mPairingKey;
+    }
+
+    public void setPairingKey(byte[] pairingKey) {
+        this.mPairingKey = pairingKey;
+    }
+
+    public String getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    public void setServiceUuid(String serviceUuid) {
+        this.mServiceUuid = serviceUuid;
+    }
+
+    public SyncWatermark getMessageWatermark() {
+        return mMessageWatermark;
+    }
+
+    public void setMessageWatermark(SyncWatermark messageWatermark) {
+        this.mMessageWatermark = messageWatermark;
+    }
+
+    public SyncWatermark getCallWatermark() {
+        return mCallWatermark;
+    }
+
+    public void setCallWatermark(SyncWatermark callWatermark) {
+        this.mCallWatermark = callWatermark;
+    }
+
     public boolean isCurrentlySyncing() {
         return mCurrentlySyncing;
     }
@@ -95,4 +146,33 @@ public class PairedPC {
     public void setCurrentlySyncing(boolean mCurrentlySyncing) {
         this.mCurrentlySyncing = mCurrentlySyncing;
     }
+
+    /**
+     * How far a table on the phone, such as the SMS provider or the call log, has been synced
+     * to the PC: the highest row id and row date sent, and when the table was last fully
+     * reconciled against the PC's own ids. See Syncer.
+     */
+    public static class SyncWatermark {
+        private final long mMaxId;
+        private final long mMaxDate;
+        private final long mLastReconcile;
+
+        public SyncWatermark(long maxId, long maxDate, long lastReconcile) {
+            this.mMaxId = maxId;
+            this.mMaxDate = maxDate;
+            this.mLastReconcile = lastReconcile;
+        }
+
+        public long getMaxId() {
+            return mMaxId;
+        }
+
+        public long getMaxDate() {
+            return mMaxDate;
+        }
+
+        public long getLastReconcile() {
+            return mLastReconcile;
+        }
+    }
 }
@@ -0,0 +1,239 @@
+package sync.synchrony.Synchrony;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that lazily encoded frames write their payload into. Each SocketWriter
+ * owns one and resets it for every frame, so records are encoded straight to UTF-8 bytes
+ * without building a String, a formatted command and a byte array copy of each one first.
+ *
+ * Not thread safe. Should only be used by the writer thread that owns it.
+ */
+public class PayloadBuffer {
+    // Initial size of the buffer, large enough for most sync records.
+    private static final int INITIAL_CAPACITY = 4096;
+
+    // Once a frame grows the buffer past this, such as a contact photo, the buffer is shrunk
+    // back on the next reset instead of holding on to the memory.
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    // Encodes characters written to it as UTF-8 straight into the buffer.
+    private final Writer mUtf8Writer = new Utf8Writer();
+
+    // Reused for every record. Lenient so that it accepts one top level value per frame.
+    private final JsonWriter mJsonWriter = new JsonWriter(mUtf8Writer);
+
+    public PayloadBuffer() {
+        mJsonWriter.setLenient(true);
+    }
+
+    /** Empties the buffer so that the next frame can be encoded into it. */
+    public void reset() {
+        if (mBuffer.length > MAX_RETAINED_CAPACITY) {
+            mBuffer = new byte[INITIAL_CAPACITY];
+        }
+        mSize = 0;
+    }
+
+    /** Drops everything after the first size bytes, such as a partly written record. */
+    public void truncate(int size) {
+        mSize = Math.min(mSize, size);
+    }
+
+    /** Appends raw bytes. */
+    public void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mSize, bytes.length);
+        mSize += bytes.length;
+    }
+
+    /** Appends the remaining bytes of a buffer, which may be direct. */
+    public void write(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        ensureCapacity(length);
+        bytes.get(mBuffer, mSize, length);
+        mSize += length;
+    }
+
+    /** Appends a big endian int, the same as Frame.writeInt. */
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        Frame.writeInt(mBuffer, mSize, value);
+        mSize += 4;
+    }
+
+    /** Appends a single byte. */
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    /** Appends an unsigned varint, 7 bits per byte with the high bit set on all but the last. */
+    public void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            mBuffer[mSize++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    /** Appends a signed value as a zig-zag varint, so small negative values stay small. */
+    public void writeZigZag(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Appends a string as a varint of its UTF-8 length plus one, followed by the UTF-8 bytes.
+     * A null string is written as a single 0.
+     */
+    public void writeString(String string) throws IOException {
+        if (string == null) {
+            writeVarint(0);
+            return;
+        }
+
+        writeVarint(utf8Length(string) + 1L);
+        writeUtf8(string);
+    }
+
+    /** Appends a string encoded as UTF-8. */
+    public void writeUtf8(String string) throws IOException {
+        mUtf8Writer.write(string);
+        mUtf8Writer.flush();
+    }
+
+    /** Appends an object encoded as JSON, exactly as Gson.toJson would encode it. */
+    public void writeJson(Object object) throws IOException {
+        JsonCodec.getGson().toJson(object, object.getClass(), mJsonWriter);
+        mJsonWriter.flush();
+    }
+
+    /** Returns the buffer's backing array. Only the first size() bytes are valid. */
+    public byte[] getArray() {
+        return mBuffer;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns a copy of the buffer's contents. */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mSize);
+    }
+
+    /** Returns the number of bytes a string takes as UTF-8, matching Utf8Writer. */
+    private static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() &&
+                    Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced with '?'.
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mSize + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+        }
+    }
+
+    /** Writer that encodes characters as UTF-8 into the enclosing buffer. */
+    private class Utf8Writer extends Writer {
+        // High surrogate waiting for its low surrogate when a pair is split across writes.
+        private char mHighSurrogate = 0;
+
+        @Override
+        public void write(int c) {
+            writeChar((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            // Every char takes at least a byte, so grow once up front for the common case.
+            ensureCapacity(length);
+            for (int i = offset; i < offset + length; i++) {
+                writeChar(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            ensureCapacity(length);
+            for (int i = offset; i < offset + length; i++) {
+                writeChar(string.charAt(i));
+            }
+        }
+
+        private void writeChar(char c) {
+            ensureCapacity(4);
+            byte[] buffer = mBuffer;
+
+            if (mHighSurrogate != 0) {
+                char high = mHighSurrogate;
+                mHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    buffer[mSize++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[mSize++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[mSize++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[mSize++] = (byte) (0x80 | (codePoint & 0x3F));
+                    return;
+                }
+                // A lone high surrogate is replaced the same way String.getBytes does.
+                buffer[mSize++] = '?';
+            }
+
+            if (c < 0x80) {
+                buffer[mSize++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[mSize++] = (byte) (0xC0 | (c >> 6));
+                buffer[mSize++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                mHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buffer[mSize++] = '?';
+            } else {
+                buffer[mSize++] = (byte) (0xE0 | (c >> 12));
+                buffer[mSize++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[mSize++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (mHighSurrogate != 0) {
+                ensureCapacity(1);
+                mBuffer[mSize++] = '?';
+                mHighSurrogate = 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package sync.synchrony.Synchrony;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Compact binary encoding for sync records, used instead of JSON once the client agrees to the
+ * BINARY_CODEC capability. Records are sent as TYPE_RECORD frames whose payload starts with a
+ * record kind, followed by the record's fields in a fixed order, so no field names are sent.
+ *
+ * Field encodings:
+ * - ids and counts are unsigned varints.
+ * - timestamps and hashes are zig-zag varints.
+ * - strings are a varint of their UTF-8 length plus one followed by the bytes, 0 for null.
+ * - types are a single byte code.
+ *
+ * Message: [id] [thread id] [number] [date sent] [type] [body] [read]
+ * Call:    [id] [number] [date] [type] [duration in seconds]
+ * Contact: [primary key] [name] [hash] [has photo] [phone count] ([label] [number])...
+ *          [email count] ([label] [address])...
+ *
+ * Once the client also agrees to the BATCHING capability, records are sent in batches instead:
+ * a KIND_BATCH byte followed by whole records back to back until the end of the payload. Every
+ * record is self-delimiting, so no counts or lengths are needed.
+ *
+ * Fields may only ever be added to the end of a record, and only with a new protocol version.
+ */
+public class RecordCodec {
+    // Record kinds, the first byte of every record frame.
+    public static final byte KIND_MESSAGE = 1;
+    public static final byte KIND_CALL = 2;
+    public static final byte KIND_CONTACT = 3;
+    public static final byte KIND_BATCH = 4;
+
+    // Message type codes.
+    private static final byte MESSAGE_TYPE_UNKNOWN = 0;
+    private static final byte MESSAGE_TYPE_RECEIVED = 1;
+    private static final byte MESSAGE_TYPE_SENT = 2;
+    private static final byte MESSAGE_TYPE_OUTBOX = 3;
+
+    // Call type codes.
+    private static final byte CALL_TYPE_UNKNOWN = 0;
+    private static final byte CALL_TYPE_INCOMING = 1;
+    private static final byte CALL_TYPE_OUTGOING = 2;
+    private static final byte CALL_TYPE_MISSED = 3;
+
+    private RecordCodec() {}
+
+    /** Returns whether a record can be encoded by this codec. */
+    public static boolean canEncode(Object record) {
+        return record instanceof Syncer.Message || record instanceof Syncer.Call ||
+                record instanceof Syncer.Contact;
+    }
+
+    /** Encodes a record, kind included, into a buffer. */
+    public static void encode(Object record, PayloadBuffer buffer) throws IOException {
+        if (record instanceof Syncer.Message) {
+            encodeMessage((Syncer.Message) record, buffer);
+        } else if (record instanceof Syncer.Call) {
+            encodeCall((Syncer.Call) record, buffer);
+        } else if (record instanceof Syncer.Contact) {
+            encodeContact((Syncer.Contact) record, buffer);
+        } else {
+            throw new IllegalArgumentException(
+                    "No binary encoding for " + record.getClass().getSimpleName() + "!");
+        }
+    }
+
+    private static void encodeMessage(Syncer.Message message, PayloadBuffer buffer)
+            throws IOException {
+        buffer.writeByte(KIND_MESSAGE);
+        buffer.writeVarint(message.getId());
+        buffer.writeVarint(message.getThreadId());
+        buffer.writeString(message.getNumber());
+        buffer.writeZigZag(message.getDateSent());
+        buffer.writeByte(messageTypeCode(message.getType()));
+        buffer.writeString(message.getBody());
+        buffer.writeVarint(message.getRead());
+    }
+
+    private static void encodeCall(Syncer.Call call, PayloadBuffer buffer) throws IOException {
+        buffer.writeByte(KIND_CALL);
+        buffer.writeVarint(call.getId());
+        buffer.writeString(call.getNumber());
+        buffer.writeZigZag(call.getDateMillis());
+        buffer.writeByte(callTypeCode(call.getType()));
+        buffer.writeVarint(call.getDurationSeconds());
+    }
+
+    private static void encodeContact(Syncer.Contact contact, PayloadBuffer buffer)
+            throws IOException {
+        buffer.writeByte(KIND_CONTACT);
+        buffer.writeVarint(contact.getPrimaryKey());
+        buffer.writeString(contact.getName());
+        buffer.writeZigZag(contact.getHash());
+        buffer.writeByte(contact.hasPhoto() ? 1 : 0);
+
+        buffer.writeVarint(contact.getPhones().size());
+        for (Map.Entry<String, String> phone : contact.getPhones().entrySet()) {
+            buffer.writeString(phone.getKey());
+            buffer.writeString(phone.getValue());
+        }
+
+        buffer.writeVarint(contact.getEmails().size());
+        for (Map.Entry<String, String> email : contact.getEmails().entrySet()) {
+            buffer.writeString(email.getKey());
+            buffer.writeString(email.getValue());
+        }
+    }
+
+    private static byte messageTypeCode(String type) {
+        if (type == null) {
+            return MESSAGE_TYPE_UNKNOWN;
+        }
+
+        switch (type) {
+            case "Received":
+                return MESSAGE_TYPE_RECEIVED;
+            case "Sent":
+                return MESSAGE_TYPE_SENT;
+            case "Outbox":
+                return MESSAGE_TYPE_OUTBOX;
+            default:
+                return MESSAGE_TYPE_UNKNOWN;
+        }
+    }
+
+    private static byte callTypeCode(String type) {
+        if (type == null) {
+            return CALL_TYPE_UNKNOWN;
+        }
+
+        switch (type) {
+            case "Incoming":
+                return CALL_TYPE_INCOMING;
+            case "Outgoing":
+                return CALL_TYPE_OUTGOING;
+            case "Missed":
+                return CALL_TYPE_MISSED;
+            default:
+                return CALL_TYPE_UNKNOWN;
+        }
+    }
+}
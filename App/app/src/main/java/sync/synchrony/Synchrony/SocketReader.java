@@ -0,0 +1,224 @@
+package sync.synchrony.Synchrony;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Thread that blocks on a sync socket's input stream and reassembles everything it reads into
+ * frames. Complete frames are passed to the connection through a queue, so commands are handled
+ * as soon as they arrive instead of on the next poll. Payloads the client split into fragments
+ * are joined back together per channel before they are queued.
+ */
+class SocketReader extends Thread {
+    private static final String TAG = "SocketReader";
+    private final String mDeviceTag;
+
+    // Placed on the frame queue once the socket can no longer be read from.
+    public static final Frame END_OF_STREAM = new Frame((byte) 0, new byte[0]);
+
+    // Max number of complete frames waiting to be handled. Once the queue is full the reader
+    // stops reading, which pushes back on the client instead of buffering without limit.
+    private static final int FRAME_QUEUE_CAPACITY = 256;
+
+    // Read buffers are shared between all connections since each reader only needs one.
+    private static final BufferPool sReadBufferPool = new BufferPool(8192, 8, false);
+
+    // Size of an ack payload: [acked sequence (4 bytes)] [credit window (4 bytes)].
+    private static final int ACK_PAYLOAD_SIZE = 8;
+
+    private final Transport mTransport;
+    private final FlowControl mFlowControl;
+    private final FrameAssembler mFrameAssembler = new FrameAssembler();
+    private final FrameCompressor mFrameCompressor = new FrameCompressor();
+    private final BlockingQueue<Frame> mFrameQueue =
+            new LinkedBlockingQueue<>(FRAME_QUEUE_CAPACITY);
+
+    // Fragments received so far for each channel's current payload, indexed by channel id.
+    // Entries are only created once a channel sends a fragment.
+    private final ByteArrayOutputStream[] mPartialPayloads = new ByteArrayOutputStream[256];
+
+    // Opens sealed frames once the key exchange is done.
+    private volatile FrameSealer mFrameOpener = null;
+
+    // Set once the client sends its first sealed frame, after which every frame must be
+    // sealed. Only touched by the reader thread.
+    private boolean mPeerSealing = false;
+
+    // Reused to rebuild each sealed frame's header, which is authenticated with its payload.
+    private final byte[] mHeader = new byte[Frame.MAX_HEADER_SIZE];
+
+    // When anything was last read from the socket, used to tell whether the client is alive.
+    private volatile long mLastReadTime = System.currentTimeMillis();
+
+    public SocketReader(Transport transport, FlowControl flowControl, String deviceTag) {
+        super("SocketReader " + deviceTag);
+        this.mTransport = transport;
+        this.mFlowControl = flowControl;
+        this.mDeviceTag = deviceTag;
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer readBuffer = sReadBufferPool.acquire();
+
+        try {
+            InputStream inputStream = mTransport.getInputStream();
+            byte[] bytes = readBuffer.array();
+
+            while (!isInterrupted()) {
+                int bytesRead = inputStream.read(bytes, 0, bytes.length);
+                if (bytesRead == -1) {
+                    break;
+                }
+                mLastReadTime = System.currentTimeMillis();
+
+                mFrameAssembler.append(bytes, 0, bytesRead);
+
+                Frame frame;
+                while ((frame = mFrameAssembler.next()) != null) {
+                    if (frame.hasFlag(Frame.FLAG_SEALED)) {
+                        frame = open(frame);
+                    } else if (mPeerSealing) {
+                        throw new IOException("Unsealed frame after encryption started!");
+                    }
+
+                    // Acks are handled here rather than on the connection thread, so that credit
+                    // still comes back while the connection thread is blocked on a full lane.
+                    if (frame.getType() == Frame.TYPE_ACK) {
+                        handleAck(frame);
+                        continue;
+                    }
+
+                    if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+                        frame = new Frame(frame.getType(),
+                                (byte) (frame.getFlags() & ~Frame.FLAG_COMPRESSED),
+                                frame.getSequence(), frame.getChannel(),
+                                mFrameCompressor.decompress(frame.getPayload()));
+                    }
+
+                    frame = reassemble(frame);
+                    if (frame != null) {
+                        mFrameQueue.put(frame);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, String.format("run: " +
+                    "Stopped reading from sync socket for device: %s: %s", mDeviceTag,
+                    e.getMessage()));
+        } catch (InterruptedException e) {
+            Log.d(TAG, String.format("run: Reader interrupted for device: %s!", mDeviceTag));
+        } finally {
+            sReadBufferPool.release(readBuffer);
+            mFrameCompressor.end();
+
+            // Make room for the end of stream marker if the queue happens to be full.
+            while (!mFrameQueue.offer(END_OF_STREAM)) {
+                mFrameQueue.poll();
+            }
+        }
+    }
+
+    /**
+     * Joins fragments of a payload back together. Returns the frame itself if it wasn't
+     * fragmented, the whole payload once its last fragment arrives, or null while more
+     * fragments are expected.
+     */
+    private Frame reassemble(Frame frame) throws IOException {
+        int channel = frame.getChannel() & 0xFF;
+        ByteArrayOutputStream partialPayload = mPartialPayloads[channel];
+        boolean more = frame.hasFlag(Frame.FLAG_MORE);
+        if (!more && (partialPayload == null || partialPayload.size() == 0)) {
+            return frame;
+        }
+
+        if (partialPayload == null) {
+            partialPayload = new ByteArrayOutputStream();
+            mPartialPayloads[channel] = partialPayload;
+        }
+        if (partialPayload.size() + frame.getPayloadLength() > Frame.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Fragmented payload on channel " + channel + " is too large!");
+        }
+        partialPayload.write(frame.getPayload(), frame.getPayloadOffset(),
+                frame.getPayloadLength());
+
+        if (more) {
+            return null;
+        }
+
+        byte[] payload = partialPayload.toByteArray();
+        partialPayload.reset();
+        return new Frame(frame.getType(), frame.getFlags(), frame.getSequence(),
+                frame.getChannel(), payload);
+    }
+
+    /**
+     * Opens a sealed frame, checking its header along with its payload. Throws if the frame
+     * can't be opened, since the stream can't be trusted after that.
+     */
+    private Frame open(Frame frame) throws IOException {
+        FrameSealer frameOpener = mFrameOpener;
+        if (frameOpener == null) {
+            throw new IOException("Sealed frame before the key exchange!");
+        }
+
+        int headerSize = Frame.writeHeader(mHeader, 0, frame.getType(), frame.getFlags(),
+                frame.getSequence(), frame.getChannel(), frame.getPayloadLength());
+        int length = frameOpener.open(mHeader, headerSize, frame.getPayload(),
+                frame.getPayloadOffset(), frame.getPayloadLength());
+        mPeerSealing = true;
+
+        return new Frame(frame.getType(), (byte) (frame.getFlags() & ~Frame.FLAG_SEALED),
+                frame.getSequence(), frame.getChannel(),
+                Arrays.copyOf(frameOpener.getOutput(), length));
+    }
+
+    /**
+     * Sets the sealer that opens the client's frames. Must be set before the key exchange
+     * reply is sent, since the client seals everything after it.
+     */
+    public void setFrameOpener(FrameSealer frameOpener) {
+        mFrameOpener = frameOpener;
+    }
+
+    /**
+     * Makes every frame from the client have to be sealed, from the very first one. Used for
+     * transports that are sealed from the start. Must be called before the reader starts.
+     */
+    public void requireSealedFrames() {
+        mPeerSealing = true;
+    }
+
+    private void handleAck(Frame frame) {
+        byte[] payload = frame.getPayload();
+        if (payload.length != ACK_PAYLOAD_SIZE) {
+            Log.w(TAG, String.format("handleAck: " +
+                    "Ignoring malformed ack from device: %s!", mDeviceTag));
+            return;
+        }
+
+        mFlowControl.onAck(Frame.readInt(payload, 0), Frame.readInt(payload, 4));
+    }
+
+    /** Returns the queue that complete frames are passed to. */
+    public BlockingQueue<Frame> getFrameQueue() {
+        return mFrameQueue;
+    }
+
+    /** Returns when anything was last read from the client. */
+    public long getLastReadTime() {
+        return mLastReadTime;
+    }
+
+    /** Returns whether the client has sent any frames, meaning it understands them as well. */
+    public boolean isPeerFraming() {
+        return mFrameAssembler.isPeerFraming();
+    }
+}
@@ -0,0 +1,416 @@
+package sync.synchrony.Synchrony;
+
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread that owns a sync socket's output stream. Every outgoing frame for a connection is
+ * queued here, so socket I/O never happens on the thread that produced the frame. Frames that
+ * are queued together are written through one buffer and flushed at once, which turns a burst
+ * of small commands into a few large socket writes.
+ *
+ * Frames are queued in the OutboundQueue lane of their Channel, which decides the order they
+ * are written in. Once the client agrees to channels, payloads larger than FRAGMENT_SIZE are
+ * written one fragment at a time, and the rest goes back to the front of its lane so that
+ * other lanes get their turns in between.
+ *
+ * Every batch written is reported to a LinkEstimator, which sizes fragments to the link so that
+ * an urgent frame never waits long behind one.
+ */
+class SocketWriter extends Thread {
+    private static final String TAG = "SocketWriter";
+    private final String mDeviceTag;
+
+    // Size of the buffer that queued frames are coalesced into before being written.
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    // Largest payload written as a single frame once channels are enabled. Slower links get
+    // smaller fragments, as picked by the LinkEstimator.
+    static final int FRAGMENT_SIZE = 8 * 1024;
+
+    private final Transport mTransport;
+    private final SocketReader mSocketReader;
+    private final Thread mConnectionThread;
+
+    // Frames waiting to be written. Producers other than the main thread block once a lane is
+    // full, which keeps a bulk sync from buffering without limit.
+    private final OutboundQueue mOutboundQueue = new OutboundQueue();
+
+    // Measures the link from the batches written and the client's acks.
+    private final LinkEstimator mLinkEstimator = new LinkEstimator(mOutboundQueue);
+
+    // Fragment size for the current batch. Only touched by the writer thread.
+    private int mFragmentSize = FRAGMENT_SIZE;
+
+    // Reused for every frame header. Only touched by the writer thread.
+    private final byte[] mHeader = new byte[Frame.MAX_HEADER_SIZE];
+
+    // Lazy frames are encoded into this buffer right before being written. Only touched by the
+    // writer thread.
+    private final PayloadBuffer mPayloadBuffer = new PayloadBuffer();
+
+    // Sequences frames and tracks the client's acks once it enables flow control.
+    private final FlowControl mFlowControl;
+
+    // Callbacks for queued frames whose ack someone is waiting for, keyed by the frame as it
+    // was queued. Handed to FlowControl once the frame is sequenced. See send(Frame, Runnable).
+    private final ConcurrentHashMap<Frame, Runnable> mAckCallbacks = new ConcurrentHashMap<>();
+
+    // Compresses large frames once the client has asked for compression.
+    private final FrameCompressor mFrameCompressor = new FrameCompressor();
+    private volatile boolean mCompressionEnabled = false;
+
+    // Whether frames carry their channel and large payloads are fragmented.
+    private volatile boolean mChannelsEnabled = false;
+
+    // Seals every frame once the key exchange is done. mPendingSealer takes over once
+    // mSealAfterFrame, the key exchange reply, has been written. Only touched by the writer
+    // thread.
+    private FrameSealer mFrameSealer = null;
+    private FrameSealer mPendingSealer = null;
+    private Frame mSealAfterFrame = null;
+
+    // Time spent sealing the current batch of frames. Only touched by the writer thread.
+    private long mSealNanos = 0;
+
+    // When anything was last written to the socket, used to skip heartbeats while the
+    // connection is busy.
+    private volatile long mLastWriteTime = System.currentTimeMillis();
+
+    public SocketWriter(Transport transport, SocketReader socketReader, FlowControl flowControl,
+                        Thread connectionThread, String deviceTag) {
+        super("SocketWriter " + deviceTag);
+        this.mTransport = transport;
+        this.mSocketReader = socketReader;
+        this.mFlowControl = flowControl;
+        this.mConnectionThread = connectionThread;
+        this.mDeviceTag = deviceTag;
+
+        mFlowControl.attach(mOutboundQueue);
+    }
+
+    @Override
+    public void run() {
+        try {
+            OutputStream outputStream = new BufferedOutputStream(
+                    mTransport.getOutputStream(), WRITE_BUFFER_SIZE);
+
+            while (!isInterrupted()) {
+                // Block for the first frame, then take whatever else is already queued so that
+                // it all goes out in as few writes as possible.
+                OutboundQueue.Entry entry = mOutboundQueue.take();
+                long batchStart = System.nanoTime();
+                mFragmentSize = mLinkEstimator.getFragmentSize(FRAGMENT_SIZE);
+                int framesWritten = 0;
+                long bytesWritten = 0;
+                int framesEncoded = 0;
+                long encodeNanos = 0;
+                mSealNanos = 0;
+
+                while (entry != null) {
+                    if (entry.getTask() != null) {
+                        entry.getTask().run();
+                        entry = mOutboundQueue.poll();
+                        continue;
+                    }
+
+                    Frame frame = entry.getFrame();
+                    // File chunks aren't sequenced, since a transfer resends its own missing
+                    // chunks and their transfer ids mean nothing to a later connection.
+                    boolean sequenced = mFlowControl.isEnabled() && !entry.isQueuedFirst() &&
+                            frame.getType() != Frame.TYPE_FILE_CHUNK;
+                    if (frame.isLazy()) {
+                        mPayloadBuffer.reset();
+                        long encodeStart = System.nanoTime();
+                        try {
+                            frame.encodePayload(mPayloadBuffer);
+                            encodeNanos += System.nanoTime() - encodeStart;
+                            framesEncoded++;
+                        } catch (IOException | RuntimeException e) {
+                            // Only this frame is lost, the socket itself is still fine.
+                            Log.e(TAG, String.format("run: " +
+                                    "Couldn't encode frame for device: %s!", mDeviceTag), e);
+                            entry = mOutboundQueue.poll();
+                            continue;
+                        }
+
+                        // Sequenced frames are kept until acked, and the rest of a fragmented
+                        // frame waits in the queue, so both need their own copy.
+                        if (sequenced || shouldFragment(entry, mPayloadBuffer.size())) {
+                            frame = frame.withPayload(mPayloadBuffer.toByteArray());
+                        }
+                    }
+
+                    byte[] payload;
+                    int payloadOffset;
+                    int payloadLength;
+                    if (frame.isLazy()) {
+                        payload = mPayloadBuffer.getArray();
+                        payloadOffset = 0;
+                        payloadLength = mPayloadBuffer.size();
+                    } else {
+                        payload = frame.getPayload();
+                        payloadOffset = frame.getPayloadOffset();
+                        payloadLength = frame.getPayloadLength();
+                    }
+
+                    // Only the last fragment's ack means the whole payload arrived.
+                    Runnable onAcked = mAckCallbacks.remove(entry.getFrame());
+                    if (shouldFragment(entry, payloadLength)) {
+                        Frame rest = frame.fragment(payload, payloadOffset + mFragmentSize,
+                                payloadLength - mFragmentSize, false);
+                        if (onAcked != null) {
+                            mAckCallbacks.put(rest, onAcked);
+                            onAcked = null;
+                        }
+                        mOutboundQueue.putFront(rest, entry.getPriority());
+                        frame = frame.fragment(payload, payloadOffset, mFragmentSize, true);
+                        payloadLength = mFragmentSize;
+                    }
+
+                    if (sequenced) {
+                        frame = mFlowControl.sequence(frame);
+                        if (onAcked != null) {
+                            mFlowControl.runWhenAcked(frame.getSequence(), onAcked);
+                        }
+                    }
+
+                    bytesWritten += writeFrame(outputStream, frame, payload, payloadOffset,
+                            payloadLength);
+                    framesWritten++;
+
+                    if (sequenced) {
+                        mFlowControl.onFrameSent(frame);
+                    }
+
+                    if (mSealAfterFrame != null && entry.getFrame() == mSealAfterFrame) {
+                        mFrameSealer = mPendingSealer;
+                        mPendingSealer = null;
+                        mSealAfterFrame = null;
+                    }
+
+                    // Don't let anything more urgent than a sync record wait in the buffer
+                    // for the frames behind it.
+                    if (entry.getPriority() != OutboundQueue.PRIORITY_BULK) {
+                        outputStream.flush();
+                    }
+
+                    entry = mOutboundQueue.poll();
+                }
+
+                outputStream.flush();
+                mLastWriteTime = System.currentTimeMillis();
+                mLinkEstimator.onBatchWritten(bytesWritten, System.nanoTime() - batchStart);
+
+                Log.d(TAG, String.format("run: " +
+                                "Wrote %d frames (%d bytes, %d encoded in %d us, sealed in " +
+                                "%d us) to client for device: %s, link at %d KB/s!",
+                        framesWritten, bytesWritten, framesEncoded, encodeNanos / 1000,
+                        mSealNanos / 1000, mDeviceTag,
+                        (long) mLinkEstimator.getThroughput() / 1024));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, String.format("run: " +
+                    "Couldn't write to sync socket for device: %s!", mDeviceTag), e);
+
+            // The socket is no longer usable, so stop the connection.
+            mConnectionThread.interrupt();
+        } catch (InterruptedException e) {
+            Log.d(TAG, String.format("run: Writer interrupted for device: %s!", mDeviceTag));
+        } finally {
+            mFrameCompressor.end();
+        }
+    }
+
+    /**
+     * Queues a frame to be written in the OutboundQueue lane of its channel. Blocks while the
+     * lane is full, unless called from the main thread, in which case the frame is dropped
+     * instead. Returns whether the frame was queued.
+     */
+    public boolean send(Frame frame) {
+        int priority = Channel.priorityOf(frame.getChannel());
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            boolean queued = mOutboundQueue.offer(frame, priority);
+            if (!queued) {
+                Log.w(TAG, String.format("send: " +
+                        "Outbound queue full, dropped frame for device: %s!", mDeviceTag));
+            }
+            return queued;
+        }
+
+        try {
+            return mOutboundQueue.put(frame, priority);
+        } catch (InterruptedException e) {
+            // Keep the interrupt so the calling thread still sees it.
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Queues a frame like send, and runs onAcked once the client has acked it, which also
+     * means every frame sequenced before it arrived. onAcked runs on the reader thread and
+     * must not block. Returns false if the frame wasn't queued or the client hasn't enabled
+     * flow control, in which case onAcked never runs.
+     */
+    public boolean send(Frame frame, Runnable onAcked) {
+        if (!mFlowControl.isEnabled()) {
+            send(frame);
+            return false;
+        }
+
+        mAckCallbacks.put(frame, onAcked);
+        if (!send(frame)) {
+            mAckCallbacks.remove(frame);
+            return false;
+        }
+        return true;
+    }
+
+    /** Returns the estimator measuring this connection's link. */
+    public LinkEstimator getLinkEstimator() {
+        return mLinkEstimator;
+    }
+
+    /** Returns when anything was last written to the client. */
+    public long getLastWriteTime() {
+        return mLastWriteTime;
+    }
+
+    /**
+     * Enables flow control once the client asks for it. Runs on the writer thread so that no
+     * frame can be sequenced while the client's resume point is being applied. The reply tells
+     * the client which sequence number comes next, and is followed by any frames it missed.
+     */
+    public void enableFlowControl(int window, int resumeFrom) {
+        mOutboundQueue.runOnWriter(() -> {
+            List<Frame> resend = mFlowControl.enable(window, resumeFrom);
+            int firstSequence = resend.isEmpty() ?
+                    mFlowControl.getNextSequence() : resend.get(0).getSequence();
+
+            ArrayList<Frame> frames = new ArrayList<>();
+            frames.add(Frame.command("flow_control_enabled: " + firstSequence));
+            frames.addAll(resend);
+            mOutboundQueue.putFirst(frames);
+
+            Log.d(TAG, String.format("enableFlowControl: " +
+                            "Flow control enabled for device: %s, resending %d frames!",
+                    mDeviceTag, resend.size()));
+        });
+    }
+
+    /**
+     * Sends the reply to the client's key exchange, then seals every frame after it. Runs on
+     * the writer thread so that the reply itself is the last frame sent in the clear.
+     */
+    public void enableSealing(Frame reply, FrameSealer frameSealer) {
+        mOutboundQueue.runOnWriter(() -> {
+            mOutboundQueue.putFirst(Collections.singletonList(reply));
+            mSealAfterFrame = reply;
+            mPendingSealer = frameSealer;
+        });
+    }
+
+    /**
+     * Seals every frame with frameSealer from the very first one, for transports that are
+     * keyed before they are connected. Must be called before the writer starts.
+     */
+    public void setFrameSealer(FrameSealer frameSealer) {
+        mFrameSealer = frameSealer;
+    }
+
+    /**
+     * Stops taking frames, for when the writer is being shut down while other threads may
+     * still be sending to it. Anything queued is dropped, and sending fails from then on.
+     * Returns the number of frames dropped.
+     */
+    public int close() {
+        mAckCallbacks.clear();
+        return mOutboundQueue.close();
+    }
+
+    /**
+     * Sets whether frames at or above FrameCompressor.COMPRESSION_THRESHOLD are compressed
+     * before being written. Should only be enabled once the client has asked for it.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        mCompressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * Sets whether frames carry their channel and large payloads are fragmented. Should only
+     * be enabled once the client has agreed to the CHANNELS capability.
+     */
+    public void setChannelsEnabled(boolean channelsEnabled) {
+        mChannelsEnabled = channelsEnabled;
+    }
+
+    /**
+     * Returns whether a frame taken from the queue is too large to be written in one piece.
+     * Frames queued with putFirst are resent exactly as they were first written.
+     */
+    private boolean shouldFragment(OutboundQueue.Entry entry, int payloadLength) {
+        return mChannelsEnabled && !entry.isQueuedFirst() && mSocketReader.isPeerFraming() &&
+                payloadLength > mFragmentSize;
+    }
+
+    /**
+     * Writes a single frame into the buffered stream, taking its payload from payloadLength
+     * bytes of payload starting at payloadOffset. Frames are written with the old delimited
+     * text protocol until the client shows that it understands frames. Once sealing is on,
+     * the payload is sealed after it is compressed, with the final header as associated data.
+     */
+    private int writeFrame(OutputStream outputStream, Frame frame, byte[] payload,
+                           int payloadOffset, int payloadLength) throws IOException {
+        if (mSocketReader.isPeerFraming()) {
+            byte flags = frame.getFlags();
+            if (mChannelsEnabled && frame.getChannel() != Channel.CONTROL) {
+                flags |= Frame.FLAG_CHANNEL;
+            }
+
+            if (mCompressionEnabled && payloadLength >= FrameCompressor.COMPRESSION_THRESHOLD) {
+                int compressedLength = mFrameCompressor.compress(payload, payloadOffset,
+                        payloadLength);
+                if (compressedLength != -1) {
+                    flags |= Frame.FLAG_COMPRESSED;
+                    payload = mFrameCompressor.getOutput();
+                    payloadOffset = 0;
+                    payloadLength = compressedLength;
+                }
+            }
+
+            if (mFrameSealer != null) {
+                flags |= Frame.FLAG_SEALED;
+                int headerSize = Frame.writeHeader(mHeader, 0, frame.getType(), flags,
+                        frame.getSequence(), frame.getChannel(),
+                        payloadLength + FrameSealer.TAG_SIZE);
+                long sealStart = System.nanoTime();
+                int sealedLength = mFrameSealer.seal(mHeader, headerSize, payload,
+                        payloadOffset, payloadLength);
+                mSealNanos += System.nanoTime() - sealStart;
+                outputStream.write(mHeader, 0, headerSize);
+                outputStream.write(mFrameSealer.getOutput(), 0, sealedLength);
+                return headerSize + sealedLength;
+            }
+
+            int headerSize = Frame.writeHeader(mHeader, 0, frame.getType(), flags,
+                    frame.getSequence(), frame.getChannel(), payloadLength);
+            outputStream.write(mHeader, 0, headerSize);
+            outputStream.write(payload, payloadOffset, payloadLength);
+            return headerSize + payloadLength;
+        } else {
+            outputStream.write(payload, payloadOffset, payloadLength);
+            outputStream.write(Frame.LEGACY_DELIMITER);
+            return payloadLength + Frame.LEGACY_DELIMITER.length;
+        }
+    }
+}
@@ -6,6 +6,8 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.CallLog;
 import android.provider.ContactsContract;
@@ -15,8 +17,10 @@ import android.util.Log;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.PermissionChecker;
 
-import com.google.gson.Gson;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -26,6 +30,8 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -49,10 +55,27 @@ public class Syncer extends Thread {
     // Tells the syncer what it should sync.
     private final int mToSync;
 
+    // Set when the user or the client asked for the sync, so that messages and calls are fully
+    // reconciled with the client instead of only sending what is past the PC's watermarks.
+    private final boolean mFullReconcile;
+
     // Constructor variables
     private final Context mContext;
+    private final BluetoothConnectionThread mConnectionThread;
     private final BluetoothSocket mBluetoothSocket;
 
+    // How long to wait for a section of the client's manifest before giving up on the sync.
+    private static final long MANIFEST_TIMEOUT = 30 * 1000;
+
+    // How often messages and calls are fully reconciled with the ids the client has. Syncs in
+    // between only read rows past the PC's watermarks, so messages and calls deleted on the
+    // phone are only deleted on the client once this has passed.
+    private static final long FULL_RECONCILE_INTERVAL = 24 * 60 * 60 * 1000;
+
+    // How long to wait for the client to confirm the end of a message or call sync before
+    // assuming some of it was lost.
+    private static final long DELIVERY_TIMEOUT = 30 * 1000;
+
     // Stores a simple readout of the client's contacts and contact photos that contains
     // key value pairs of the contact's ID and the hash of its information or photo.
     private HashMap<Long, Long> mClientContactHashes;
@@ -64,13 +87,43 @@ public class Syncer extends Thread {
     // Store a simple readout of the ids of the calls on the client device.
     private ArrayList<Long> mClientCallIds;
 
+    // Sections of the client's manifest, handed over by the connection thread as they arrive.
+    private final ManifestSection<HashMap<Long, Long>> mContactHashesSection =
+            new ManifestSection<>("contact_hashes");
+    private final ManifestSection<HashMap<Long, Long>> mContactPhotoHashesSection =
+            new ManifestSection<>("contact_photo_hashes");
+    private final ManifestSection<ArrayList<Long>> mMessageIdsSection =
+            new ManifestSection<>("message_ids");
+    private final ManifestSection<ArrayList<Long>> mCallIdsSection =
+            new ManifestSection<>("call_ids");
+
+    // Records waiting to be sent together once the client agrees to batching, sized by the
+    // connection's LinkEstimator. See RecordCodec.
+    private final PayloadBuffer mBatch = new PayloadBuffer();
+    private int mBatchRecords = 0;
+
+    // A sync that was stopped for this one, which has to finish recording how far it got
+    // before this one reads the watermarks.
+    private Syncer mPreviousSyncer;
+
+    // Set when this sync's records go over the local network socket, whose frames aren't
+    // acked, so only a receipt from the client can confirm their delivery.
+    private boolean mSyncOverLan = false;
+
+    // Receipts being waited for, keyed by the command that ends the section.
+    private final ConcurrentHashMap<String, CountDownLatch> mReceipts =
+            new ConcurrentHashMap<>();
+
     // Used to determine whether the thread should stop syncing.
-    private boolean stopSync = false;
+    private volatile boolean stopSync = false;
 
-    public Syncer(Context mContext, BluetoothSocket mBluetoothSocket, int toSync) {
+    public Syncer(Context mContext, BluetoothConnectionThread connectionThread, int toSync,
+                  boolean fullReconcile) {
         this.mContext = mContext;
-        this.mBluetoothSocket = mBluetoothSocket;
+        this.mConnectionThread = connectionThread;
+        this.mBluetoothSocket = connectionThread.getBluetoothSocket();
         this.mToSync = toSync;
+        this.mFullReconcile = fullReconcile;
 
         this.mDeviceTag = String.format("%s (%s)", mBluetoothSocket.getRemoteDevice().getName(),
                 mBluetoothSocket.getRemoteDevice().getAddress());
@@ -78,33 +131,73 @@ public class Syncer extends Thread {
 
     @Override
     public void run() {
+        // The stopped sync clears the syncing state once it finishes, so wait for it first.
+        if (mPreviousSyncer != null) {
+            try {
+                mPreviousSyncer.join();
+            } catch (InterruptedException e) {
+                stopSync = true;
+            }
+            mPreviousSyncer = null;
+        }
+
         // Broadcast the starting of the sync background to the rest of the app.
         String pcAddress = mBluetoothSocket.getRemoteDevice().getAddress();
-        Objects.requireNonNull(Utils.getPairedPC(pcAddress)).setCurrentlySyncing(true);
+        PairedPC pairedPC = Objects.requireNonNull(Utils.getPairedPC(pcAddress));
+        pairedPC.setCurrentlySyncing(true);
         broadcastSyncActivityChange();
 
-        // If contact permissions are given, sync contacts with the device.
-        if (ContextCompat.checkSelfPermission(mContext, Manifest.permission.READ_CONTACTS) ==
-                PermissionChecker.PERMISSION_GRANTED) {
-            if (mToSync == SYNC_ALL || mToSync == SYNC_CONTACTS) {
-                new ContactsSync().syncContacts();
-            }
+        try {
+            mConnectionThread.chooseSyncTransport();
+            mSyncOverLan = mConnectionThread.isSyncOverLan();
+        } catch (InterruptedException e) {
+            stopSync = true;
         }
 
-        if (ContextCompat.checkSelfPermission(mContext, Manifest.permission.READ_SMS) ==
-                PermissionChecker.PERMISSION_GRANTED) {
-            if (mToSync == SYNC_ALL || mToSync == SYNC_MESSAGES) {
-                new MessagesSync().syncMessages();
-            }
+        // Only sync what was asked for and what permissions have been given for.
+        boolean syncContacts = (mToSync == SYNC_ALL || mToSync == SYNC_CONTACTS) &&
+                ContextCompat.checkSelfPermission(mContext, Manifest.permission.READ_CONTACTS) ==
+                        PermissionChecker.PERMISSION_GRANTED;
+        boolean syncMessages = (mToSync == SYNC_ALL || mToSync == SYNC_MESSAGES) &&
+                ContextCompat.checkSelfPermission(mContext, Manifest.permission.READ_SMS) ==
+                        PermissionChecker.PERMISSION_GRANTED;
+        boolean syncCalls = (mToSync == SYNC_ALL || mToSync == SYNC_CALLS) &&
+                ContextCompat.checkSelfPermission(mContext, Manifest.permission.READ_CALL_LOG) ==
+                        PermissionChecker.PERMISSION_GRANTED;
+
+        // The client's message and call ids are only needed to fully reconcile them.
+        boolean reconcileMessages = syncMessages &&
+                isFullReconcileDue(pairedPC.getMessageWatermark());
+        boolean reconcileCalls = syncCalls && isFullReconcileDue(pairedPC.getCallWatermark());
+
+        // Ask for everything the client has up front, so that its answers are on their way
+        // while the phone's own data is being read.
+        ArrayList<ManifestSection<?>> sections = new ArrayList<>();
+        if (syncContacts) {
+            sections.add(mContactHashesSection);
+            sections.add(mContactPhotoHashesSection);
+        }
+        if (reconcileMessages) {
+            sections.add(mMessageIdsSection);
+        }
+        if (reconcileCalls) {
+            sections.add(mCallIdsSection);
         }
+        requestManifest(sections);
 
-        if (ContextCompat.checkSelfPermission(mContext, Manifest.permission.READ_CALL_LOG) ==
-                PermissionChecker.PERMISSION_GRANTED) {
-            if (mToSync == SYNC_ALL || mToSync == SYNC_CALLS) {
-                new CallsSync().syncCalls();
-            }
+        if (syncContacts) {
+            new ContactsSync().syncContacts();
+        }
+
+        if (syncMessages && !stopSync) {
+            new MessagesSync().syncMessages(reconcileMessages);
         }
 
+        if (syncCalls && !stopSync) {
+            new CallsSync().syncCalls(reconcileCalls);
+        }
+        flushBatch();
+
         // Broadcast the stopping of the sync background to the rest of the app.
         Objects.requireNonNull(Utils.getPairedPC(pcAddress)).setCurrentlySyncing(false);
         Utils.setPCLastSync(pcAddress, Calendar.getInstance().getTime());
@@ -114,20 +207,61 @@ public class Syncer extends Thread {
                 mDeviceTag));
     }
 
+    /**
+     * Returns whether a table should be fully reconciled with the client rather than only
+     * synced past its watermark: when it was never synced to the PC, when it was last
+     * reconciled more than FULL_RECONCILE_INTERVAL ago, or when the sync was asked for.
+     */
+    private boolean isFullReconcileDue(PairedPC.SyncWatermark watermark) {
+        if (mFullReconcile || watermark == null) {
+            return true;
+        }
+
+        long sinceReconcile = System.currentTimeMillis() - watermark.getLastReconcile();
+        // A negative interval means the clock was set back, which can't be trusted either.
+        return sinceReconcile < 0 || sinceReconcile >= FULL_RECONCILE_INTERVAL;
+    }
+
+    /**
+     * Returns the selection for rows past a watermark: rows with a higher id, which are new,
+     * and rows with a later date, which were changed or reused an old id.
+     */
+    private static String watermarkSelection(String idColumn, String dateColumn) {
+        return String.format("%s > ? OR %s > ?", idColumn, dateColumn);
+    }
+
+    private static String[] watermarkSelectionArgs(PairedPC.SyncWatermark watermark) {
+        return new String[]{String.valueOf(watermark.getMaxId()),
+                String.valueOf(watermark.getMaxDate())};
+    }
+
+    /** Makes this sync wait for a sync that was just stopped. Must be called before start. */
+    public void runAfter(Syncer previousSyncer) {
+        mPreviousSyncer = previousSyncer;
+    }
+
     public void setClientContactHashes(HashMap<Long, Long> clientContactHashes) {
-        this.mClientContactHashes = clientContactHashes;
+        mContactHashesSection.set(clientContactHashes);
     }
 
     public void setClientContactPhotoHashes(HashMap<Long, Long> clientContactPhotoHashes) {
-        this.mClientContactsPhotoHashes = clientContactPhotoHashes;
+        mContactPhotoHashesSection.set(clientContactPhotoHashes);
     }
 
     public void setClientMessageIDs(ArrayList<Long> mClientMessageIDs) {
-        this.mClientMessageIDs = mClientMessageIDs;
+        mMessageIdsSection.set(mClientMessageIDs);
     }
 
     public void setClientCallIds(ArrayList<Long> mClientCallIds) {
-        this.mClientCallIds = mClientCallIds;
+        mCallIdsSection.set(mClientCallIds);
+    }
+
+    /** Called when the client confirms it stored the section ended by the given command. */
+    public void onSyncReceived(String commandName) {
+        CountDownLatch received = mReceipts.get(commandName);
+        if (received != null) {
+            received.countDown();
+        }
     }
 
     @Override
@@ -136,6 +270,196 @@ public class Syncer extends Thread {
         super.interrupt();
     }
 
+    /**
+     * Asks the client for the given sections of its manifest. A client that agreed to the
+     * MANIFEST capability gets a single "check_manifest" command and streams back one have_*
+     * command per section. Older clients get the old check_* commands, all sent at once.
+     */
+    private void requestManifest(ArrayList<ManifestSection<?>> sections) {
+        if (sections.isEmpty()) {
+            return;
+        }
+
+        if (mConnectionThread.hasCapability(Capabilities.MANIFEST)) {
+            StringBuilder command = new StringBuilder("check_manifest:");
+            for (ManifestSection<?> section : sections) {
+                command.append(' ').append(section.getName());
+            }
+            sendCommand(command.toString());
+        } else {
+            for (ManifestSection<?> section : sections) {
+                sendCommand(section.getLegacyRequest());
+            }
+        }
+
+        Log.d(TAG, String.format("requestManifest: " +
+                "Requested %d manifest sections from device: %s...", sections.size(), mDeviceTag));
+    }
+
+    /**
+     * Waits for a section of the client's manifest. Returns null and stops the sync if the
+     * sync is interrupted or the section doesn't arrive in time.
+     */
+    private <T> T awaitManifestSection(ManifestSection<T> section) {
+        // Don't leave records sitting in a batch while waiting.
+        flushBatch();
+
+        long start = System.currentTimeMillis();
+        try {
+            T value = section.await(MANIFEST_TIMEOUT);
+            if (value == null) {
+                Log.w(TAG, String.format("awaitManifestSection: " +
+                        "Timed out waiting for %s from device: %s!", section.getName(),
+                        mDeviceTag));
+                stopSync = true;
+                return null;
+            }
+
+            Log.d(TAG, String.format("awaitManifestSection: " +
+                    "Waited %d ms for %s from device: %s!", System.currentTimeMillis() - start,
+                    section.getName(), mDeviceTag));
+            return value;
+        } catch (InterruptedException e) {
+            stopSync = true;
+            return null;
+        }
+    }
+
+    /**
+     * Queues a command on the sync channel, behind any more urgent traffic. Any batched records
+     * go first, so the client sees them in the order they were sent.
+     */
+    private void sendCommand(String command) {
+        flushBatch();
+        mConnectionThread.sendCommand(Channel.SYNC, command);
+    }
+
+    /**
+     * Queues a command that ends a section of the sync, and waits for the client to confirm
+     * that every record of the section arrived: with a receipt if it agreed to SYNC_RECEIPTS,
+     * on any socket, or else with its flow control ack over Bluetooth. A client that can do
+     * neither is trusted to have received what was queued, as before. Returns false if the
+     * command couldn't be queued, or a confirmation was expected and didn't come in time.
+     */
+    private boolean sendCommandAndConfirm(String command) {
+        flushBatch();
+        if (mConnectionThread.hasCapability(Capabilities.SYNC_RECEIPTS)) {
+            String commandName = command.substring(0, command.indexOf(':'));
+            CountDownLatch received = new CountDownLatch(1);
+            mReceipts.put(commandName, received);
+            try {
+                return mConnectionThread.sendCommand(Channel.SYNC, command) &&
+                        awaitConfirmation(received, command);
+            } finally {
+                mReceipts.remove(commandName);
+            }
+        }
+
+        if (!mSyncOverLan) {
+            CountDownLatch acked = new CountDownLatch(1);
+            if (mConnectionThread.sendCommandWithAck(Channel.SYNC, command, acked::countDown)) {
+                return awaitConfirmation(acked, command);
+            }
+        }
+        return mConnectionThread.sendCommand(Channel.SYNC, command);
+    }
+
+    /** Waits up to DELIVERY_TIMEOUT for a section's confirmation. Returns whether it came. */
+    private boolean awaitConfirmation(CountDownLatch confirmed, String command) {
+        try {
+            if (confirmed.await(DELIVERY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            Log.w(TAG, String.format("awaitConfirmation: " +
+                    "No confirmation for %s from device: %s!", command, mDeviceTag));
+        } catch (InterruptedException e) {
+            stopSync = true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the watermark to keep when records past it may not have reached the client. It
+     * stays where it was, but is due for a full reconcile, which only sends what the client is
+     * missing. Simply keeping it would send the same rows again, and the client would store
+     * them twice.
+     */
+    private static PairedPC.SyncWatermark unconfirmed(PairedPC.SyncWatermark watermark) {
+        return watermark == null ? null :
+                new PairedPC.SyncWatermark(watermark.getMaxId(), watermark.getMaxDate(), 0);
+    }
+
+    /**
+     * Queues a record to be sent as "<command>: <json>", or with RecordCodec if the client
+     * agreed to the binary codec. The record is encoded by the writer thread straight into its
+     * payload buffer, so it must not be changed after being sent. While several PCs are
+     * connected, the encoded record is shared with their syncers through EncodedFrameCache,
+     * keyed by the record's fingerprint.
+     */
+    private void sendRecord(String command, Object record, String fingerprint) {
+        if (mConnectionThread.hasCapability(Capabilities.BINARY_CODEC) &&
+                RecordCodec.canEncode(record)) {
+            if (mConnectionThread.hasCapability(Capabilities.BATCHING)) {
+                addToBatch(record, fingerprint);
+                return;
+            }
+
+            mConnectionThread.sendFrame(EncodedFrameCache.frame(Frame.TYPE_RECORD, Channel.SYNC,
+                    "record", fingerprint, buffer -> RecordCodec.encode(record, buffer)));
+            return;
+        }
+
+        byte[] prefix = (command + ": ").getBytes(StandardCharsets.UTF_8);
+        mConnectionThread.sendFrame(EncodedFrameCache.frame(Frame.TYPE_COMMAND, Channel.SYNC,
+                command, fingerprint, buffer -> {
+                    buffer.write(prefix);
+                    buffer.writeJson(record);
+                }));
+    }
+
+    /**
+     * Adds a record to the current batch, and sends the batch once it reaches the size the
+     * LinkEstimator picks for the link. While several PCs are connected, the record's encoding
+     * is shared with their syncers through EncodedFrameCache.
+     */
+    private void addToBatch(Object record, String fingerprint) {
+        if (mBatchRecords == 0) {
+            mBatch.reset();
+            mBatch.writeByte(RecordCodec.KIND_BATCH);
+        }
+
+        int batchSize = mBatch.size();
+        try {
+            if (EncodedFrameCache.isFanningOut()) {
+                mBatch.write(EncodedFrameCache.payload("record", fingerprint,
+                        buffer -> RecordCodec.encode(record, buffer)));
+            } else {
+                RecordCodec.encode(record, mBatch);
+            }
+            mBatchRecords++;
+        } catch (IOException | RuntimeException e) {
+            // Only this record is lost, so drop whatever part of it was written.
+            Log.e(TAG, String.format("addToBatch: " +
+                    "Couldn't encode record for device: %s!", mDeviceTag), e);
+            mBatch.truncate(batchSize);
+        }
+
+        if (mBatch.size() >= mConnectionThread.getLinkEstimator().getBatchSize()) {
+            flushBatch();
+        }
+    }
+
+    /** Sends the current batch of records, if there is one. */
+    private void flushBatch() {
+        if (mBatchRecords == 0) {
+            return;
+        }
+
+        mConnectionThread.sendFrame(new Frame(Frame.TYPE_RECORD, (byte) 0, 0, Channel.SYNC,
+                mBatch.toByteArray()));
+        mBatchRecords = 0;
+    }
+
     /** Tells the rest of the app whether there is sync background activity occurring or not. */
 
     private void broadcastSyncActivityChange() {
@@ -199,6 +523,14 @@ public class Syncer extends Thread {
             return mHasPhoto;
         }
 
+        public HashMap<String, String> getPhones() {
+            return mPhones;
+        }
+
+        public HashMap<String, String> getEmails() {
+            return mEmails;
+        }
+
         public void addPhone(String phoneTypeName, String phoneNumber) {
             mPhones.put(phoneTypeName, phoneNumber);
         }
@@ -211,6 +543,10 @@ public class Syncer extends Thread {
             return mHash;
         }
 
+        public void setHash(int mHash) {
+            this.mHash = mHash;
+        }
+
         public long getPrimaryKey() {
             return mPrimaryKey;
         }
@@ -219,43 +555,102 @@ public class Syncer extends Thread {
             this.mPrimaryKey = mPrimaryKey;
         }
 
+        /** Identifies this version of the contact. Only valid once generateHash is called. */
+        public String getFingerprint() {
+            return "contact:" + mPrimaryKey + ":" + mHash + ":" + mHasPhoto;
+        }
+
         public String toJson() {
-            Gson gson = new Gson();
-            return gson.toJson(this);
+            return JsonCodec.getGson().toJson(this);
         }
     }
 
     private class MessagesSync {
-        private void syncMessages() {
-            BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                    "check_message_ids");
+        // Highest id and date of the messages read from the phone, which become the PC's
+        // watermark once they are sent.
+        private long mMaxId = -1;
+        private long mMaxDate = -1;
+
+        private void syncMessages(boolean reconcile) {
+            String btAddress = mBluetoothSocket.getRemoteDevice().getAddress();
+            PairedPC.SyncWatermark watermark =
+                    Objects.requireNonNull(Utils.getPairedPC(btAddress)).getMessageWatermark();
+
+            if (!reconcile) {
+                mMaxId = watermark.getMaxId();
+                mMaxDate = watermark.getMaxDate();
+                ArrayList<Message> newMessages = getPhoneMessages(
+                        watermarkSelection(Telephony.Sms._ID, Telephony.Sms.DATE),
+                        watermarkSelectionArgs(watermark));
+
+                if (!hasChangedMessages(newMessages, watermark)) {
+                    if (stopSync) {
+                        return;
+                    }
 
-            // Wait for message ids from client device.
-            while (mClientMessageIDs == null) {
-                String pcAddress = mBluetoothSocket.getRemoteDevice().getAddress();
-                if (!Objects.requireNonNull(Utils.getPairedPC(pcAddress)).isSyncSocketConnected()) {
-                    stopSync = true;
-                }
+                    String complete = "message_sync_complete: " + btAddress;
+                    if (newMessages.isEmpty()) {
+                        sendCommand(complete);
+                        return;
+                    }
 
-                if (stopSync) {
-                    break;
+                    sendNewMessages(newMessages);
+                    if (sendCommandAndConfirm(complete)) {
+                        Utils.setPCMessageWatermark(btAddress, new PairedPC.SyncWatermark(
+                                mMaxId, mMaxDate, watermark.getLastReconcile()));
+                    } else {
+                        Utils.setPCMessageWatermark(btAddress, unconfirmed(watermark));
+                    }
+
+                    Log.d(TAG, String.format("syncMessages: " +
+                            "Sent %d new messages to device: %s!", newMessages.size(),
+                            mDeviceTag));
+                    return;
                 }
+
+                // Messages the client already has were changed, or the ids were reset, which
+                // only a full reconcile can sort out.
+                Log.d(TAG, String.format("syncMessages: " +
+                        "Older messages changed, reconciling with device: %s...", mDeviceTag));
+                ArrayList<ManifestSection<?>> sections = new ArrayList<>();
+                sections.add(mMessageIdsSection);
+                requestManifest(sections);
+                mMaxId = -1;
+                mMaxDate = -1;
             }
 
+            ArrayList<Message> phoneMessages = getPhoneMessages(null, null);
+
+            // Wait for message ids from client device.
+            mClientMessageIDs = awaitManifestSection(mMessageIdsSection);
+
             if (!stopSync) {
-                ArrayList<Message> phoneMessages = getPhoneMessages();
                 sendMessages(phoneMessages);
                 deleteOldMessages(phoneMessages);
 
-                String btAddress = mBluetoothSocket.getRemoteDevice().getAddress();
-                BluetoothConnectionThread.sendCommand(
-                        mBluetoothSocket, "message_sync_complete: " + btAddress);
+                if (sendCommandAndConfirm("message_sync_complete: " + btAddress)) {
+                    Utils.setPCMessageWatermark(btAddress, new PairedPC.SyncWatermark(
+                            mMaxId, mMaxDate, System.currentTimeMillis()));
+                } else {
+                    Utils.setPCMessageWatermark(btAddress, unconfirmed(watermark));
+                }
             }
         }
 
-        private ArrayList<Message> getPhoneMessages() {
+        /** Returns whether any of the messages read past a watermark is one sent before it. */
+        private boolean hasChangedMessages(ArrayList<Message> messages,
+                                           PairedPC.SyncWatermark watermark) {
+            for (Message message : messages) {
+                if (message.getId() <= watermark.getMaxId()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private ArrayList<Message> getPhoneMessages(String selection, String[] selectionArgs) {
             Cursor cursor = mContext.getContentResolver().query(Uri.parse("content://sms/"),
-                    null, null, null, null);
+                    null, selection, selectionArgs, null);
 
             ArrayList<Message> phoneMessages = new ArrayList<>();
             while (cursor.moveToNext() && !stopSync) {
@@ -263,6 +658,9 @@ public class Syncer extends Thread {
 
                 message.setId(cursor.getLong(
                         cursor.getColumnIndexOrThrow(Telephony.Sms._ID)));
+                mMaxId = Math.max(mMaxId, message.getId());
+                mMaxDate = Math.max(mMaxDate, cursor.getLong(
+                        cursor.getColumnIndexOrThrow(Telephony.Sms.DATE)));
                 message.setBody(cursor.getString(
                         cursor.getColumnIndexOrThrow(Telephony.Sms.BODY)));
                 message.setThreadId(cursor.getLong(
@@ -309,13 +707,19 @@ public class Syncer extends Thread {
             // If a message's id isn't present in the client's message id's, send it to the client.
             for (Message phoneMessage : phoneMessages) {
                 if (!mClientMessageIDs.contains(phoneMessage.getId())) {
-                    BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                            String.format("incoming_message: %s",
-                                    phoneMessage.toJson()));
+                    sendRecord("incoming_message", phoneMessage,
+                            phoneMessage.getFingerprint());
                 }
             }
         }
 
+        /** Sends messages read past the PC's watermark, which the client can't have yet. */
+        private void sendNewMessages(ArrayList<Message> newMessages) {
+            for (Message newMessage : newMessages) {
+                sendRecord("incoming_message", newMessage, newMessage.getFingerprint());
+            }
+        }
+
         private void deleteOldMessages(ArrayList<Message> phoneMessages) {
             for (Long clientMessageId : mClientMessageIDs) {
                 if (!stopSync) {
@@ -328,8 +732,7 @@ public class Syncer extends Thread {
                     }
 
                     if (deleteMessage) {
-                        BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                                ("delete_message: " + clientMessageId));
+                        sendCommand(("delete_message: " + clientMessageId));
                     }
                 }
             }
@@ -337,36 +740,89 @@ public class Syncer extends Thread {
     }
 
     private class CallsSync {
-        private void syncCalls() {
-            BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                    "check_call_ids");
+        // Highest id and date of the calls read from the phone, which become the PC's
+        // watermark once they are sent.
+        private long mMaxId = -1;
+        private long mMaxDate = -1;
+
+        private void syncCalls(boolean reconcile) {
+            String btAddress = mBluetoothSocket.getRemoteDevice().getAddress();
+            PairedPC.SyncWatermark watermark =
+                    Objects.requireNonNull(Utils.getPairedPC(btAddress)).getCallWatermark();
+
+            if (!reconcile) {
+                mMaxId = watermark.getMaxId();
+                mMaxDate = watermark.getMaxDate();
+                ArrayList<Call> newCalls = getPhoneCalls(
+                        watermarkSelection(CallLog.Calls._ID, CallLog.Calls.DATE),
+                        watermarkSelectionArgs(watermark));
+
+                if (!hasChangedCalls(newCalls, watermark)) {
+                    if (stopSync) {
+                        return;
+                    }
 
-            // Wait for call ids from client device.
-            while (mClientCallIds == null) {
-                String pcAddress = mBluetoothSocket.getRemoteDevice().getAddress();
-                if (!Objects.requireNonNull(Utils.getPairedPC(pcAddress)).isSyncSocketConnected()) {
-                    stopSync = true;
-                }
+                    String complete = "calls_sync_complete: " + btAddress;
+                    if (newCalls.isEmpty()) {
+                        sendCommand(complete);
+                        return;
+                    }
 
-                if (stopSync) {
-                    break;
+                    sendNewCalls(newCalls);
+                    if (sendCommandAndConfirm(complete)) {
+                        Utils.setPCCallWatermark(btAddress, new PairedPC.SyncWatermark(
+                                mMaxId, mMaxDate, watermark.getLastReconcile()));
+                    } else {
+                        Utils.setPCCallWatermark(btAddress, unconfirmed(watermark));
+                    }
+
+                    Log.d(TAG, String.format("syncCalls: " +
+                            "Sent %d new calls to device: %s!", newCalls.size(), mDeviceTag));
+                    return;
                 }
+
+                // Calls the client already has were changed, or the ids were reset, which
+                // only a full reconcile can sort out.
+                Log.d(TAG, String.format("syncCalls: " +
+                        "Older calls changed, reconciling with device: %s...", mDeviceTag));
+                ArrayList<ManifestSection<?>> sections = new ArrayList<>();
+                sections.add(mCallIdsSection);
+                requestManifest(sections);
+                mMaxId = -1;
+                mMaxDate = -1;
             }
 
+            ArrayList<Call> phoneCalls = getPhoneCalls(null, null);
+
+            // Wait for call ids from client device.
+            mClientCallIds = awaitManifestSection(mCallIdsSection);
+
             if (!stopSync) {
-                ArrayList<Call> phoneCalls = getPhoneCalls();
                 sendPhoneCalls(phoneCalls);
                 deleteOldPhoneCalls(phoneCalls);
 
-                String btAddress = mBluetoothSocket.getRemoteDevice().getAddress();
-                BluetoothConnectionThread.sendCommand(
-                        mBluetoothSocket, "calls_sync_complete: " + btAddress);
+                if (sendCommandAndConfirm("calls_sync_complete: " + btAddress)) {
+                    Utils.setPCCallWatermark(btAddress, new PairedPC.SyncWatermark(
+                            mMaxId, mMaxDate, System.currentTimeMillis()));
+                } else {
+                    Utils.setPCCallWatermark(btAddress, unconfirmed(watermark));
+                }
+            }
+        }
+
+        /** Returns whether any of the calls read past a watermark is one sent before it. */
+        private boolean hasChangedCalls(ArrayList<Call> calls, PairedPC.SyncWatermark watermark) {
+            for (Call call : calls) {
+                if (call.getId() <= watermark.getMaxId()) {
+                    return true;
+                }
             }
+            return false;
         }
 
-        private ArrayList<Call> getPhoneCalls() {
+        private ArrayList<Call> getPhoneCalls(String selection, String[] selectionArgs) {
             Cursor cursor = mContext.getContentResolver().query(CallLog.Calls.CONTENT_URI,
-                    null, null, null, null);
+                    null, selection, selectionArgs, null);
 
             ArrayList<Call> phoneCalls = new ArrayList<>();
             while (cursor.moveToNext() && !stopSync) {
@@ -377,8 +833,11 @@ public class Syncer extends Thread {
                 call.setNumber(cursor.getString(
                         cursor.getColumnIndexOrThrow(CallLog.Calls.NUMBER)));
 
-                int durationMillis = cursor.getInt(
-                        cursor.getColumnIndexOrThrow(CallLog.Calls.DURATION)) * 1000;
+                int durationSeconds = cursor.getInt(
+                        cursor.getColumnIndexOrThrow(CallLog.Calls.DURATION));
+                call.setDurationSeconds(durationSeconds);
+
+                int durationMillis = durationSeconds * 1000;
                 String duration = String.format(Locale.getDefault(), "%02d:%02d:%02d",
                         TimeUnit.MILLISECONDS.toHours(durationMillis),
                         TimeUnit.MILLISECONDS.toMinutes(durationMillis) %
@@ -389,9 +848,14 @@ public class Syncer extends Thread {
 
                 DateFormat dateFormatter = SimpleDateFormat.getDateTimeInstance(
                         DateFormat.SHORT, DateFormat.SHORT);
+                long dateMillis = cursor.getLong(
+                        cursor.getColumnIndexOrThrow(CallLog.Calls.DATE));
+                call.setDateMillis(dateMillis);
+                mMaxId = Math.max(mMaxId, call.getId());
+                mMaxDate = Math.max(mMaxDate, dateMillis);
+
                 Calendar calendar = Calendar.getInstance();
-                calendar.setTimeInMillis(cursor.getLong(
-                        cursor.getColumnIndexOrThrow(CallLog.Calls.DATE)));
+                calendar.setTimeInMillis(dateMillis);
                 call.setDate(dateFormatter.format(calendar.getTime()));
 
                 int type = cursor.getInt(cursor.getColumnIndexOrThrow(CallLog.Calls.TYPE));
@@ -419,13 +883,18 @@ public class Syncer extends Thread {
         private void sendPhoneCalls(ArrayList<Call> phoneCalls) {
             for (Call call : phoneCalls) {
                 if (!mClientCallIds.contains(call.getId())) {
-                    BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                            String.format("incoming_call: %s",
-                                    call.toJson()));
+                    sendRecord("incoming_call", call, call.getFingerprint());
                 }
             }
         }
 
+        /** Sends calls read past the PC's watermark, which the client can't have yet. */
+        private void sendNewCalls(ArrayList<Call> newCalls) {
+            for (Call newCall : newCalls) {
+                sendRecord("incoming_call", newCall, newCall.getFingerprint());
+            }
+        }
+
         private void deleteOldPhoneCalls(ArrayList<Call> phoneCalls) {
             for (Long clientCallId : mClientCallIds) {
                 if (!stopSync) {
@@ -438,8 +907,7 @@ public class Syncer extends Thread {
                     }
 
                     if (deleteCall) {
-                        BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                                ("delete_call: " + clientCallId));
+                        sendCommand(("delete_call: " + clientCallId));
                     }
                 }
             }
@@ -453,6 +921,11 @@ public class Syncer extends Thread {
         private String mDate;
         private String mDuration;
 
+        // Raw values behind mDate and mDuration, sent by RecordCodec instead of the
+        // formatted strings.
+        private transient long mDateMillis;
+        private transient long mDurationSeconds;
+
         public long getId() {
             return mId;
         }
@@ -493,9 +966,29 @@ public class Syncer extends Thread {
             this.mDuration = mDuration;
         }
 
+        public long getDateMillis() {
+            return mDateMillis;
+        }
+
+        public void setDateMillis(long mDateMillis) {
+            this.mDateMillis = mDateMillis;
+        }
+
+        public long getDurationSeconds() {
+            return mDurationSeconds;
+        }
+
+        public void setDurationSeconds(long mDurationSeconds) {
+            this.mDurationSeconds = mDurationSeconds;
+        }
+
         public String toJson() {
-            Gson gson = new Gson();
-            return gson.toJson(this);
+            return JsonCodec.getGson().toJson(this);
+        }
+
+        /** Identifies the call. Calls never change once they are in the call log. */
+        public String getFingerprint() {
+            return "call:" + mId;
         }
     }
 
@@ -509,8 +1002,7 @@ public class Syncer extends Thread {
         private int mRead;
 
         public String toJson() {
-            Gson gson = new Gson();
-            return gson.toJson(this);
+            return JsonCodec.getGson().toJson(this);
         }
 
         public long getId() {
@@ -568,6 +1060,11 @@ public class Syncer extends Thread {
         public void setBody(String mBody) {
             this.mBody = mBody;
         }
+
+        /** Identifies this version of the message. Only its type and read state can change. */
+        public String getFingerprint() {
+            return "message:" + mId + ":" + mType + ":" + mRead;
+        }
     }
 
     private class ContactsSync {
@@ -575,24 +1072,10 @@ public class Syncer extends Thread {
             Log.d(TAG, String.format("syncContacts: Starting contacts sync for device: %s...",
                     mDeviceTag));
 
-            Log.d(TAG, String.format("syncContacts: Requesting contact hashes from device: %s...",
-                    mDeviceTag));
-            BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                    "check_contact_info_hashes");
+            ArrayList<Contact> phoneContacts = getPhoneContacts();
 
             // Wait for contact hashes from client device.
-            while (mClientContactHashes == null) {
-                String pcAddress = mBluetoothSocket.getRemoteDevice().getAddress();
-                if (!Objects.requireNonNull(Utils.getPairedPC(pcAddress)).isSyncSocketConnected()) {
-                    stopSync = true;
-                }
-
-                if (stopSync) {
-                    break;
-                }
-            }
-
-            ArrayList<Contact> phoneContacts = getPhoneContacts();
+            mClientContactHashes = awaitManifestSection(mContactHashesSection);
 
             // Once client contact hashes are received send any updated contact info to client and
             // delete any old contacts on the client device.
@@ -601,29 +1084,18 @@ public class Syncer extends Thread {
                 deleteOldContacts(phoneContacts);
 
                 String btAddress = mBluetoothSocket.getRemoteDevice().getAddress();
-                BluetoothConnectionThread.sendCommand(
-                        mBluetoothSocket, "contacts_sync_complete: " + btAddress);
+                sendCommand("contacts_sync_complete: " + btAddress);
             }
 
-            BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                    "check_contact_photo_hashes");
-            while (mClientContactsPhotoHashes == null) {
-                String pcAddress = mBluetoothSocket.getRemoteDevice().getAddress();
-                if (!Objects.requireNonNull(Utils.getPairedPC(pcAddress)).isSyncSocketConnected()) {
-                    stopSync = true;
-                }
-
-                if (stopSync) {
-                    break;
-                }
+            if (!stopSync) {
+                mClientContactsPhotoHashes = awaitManifestSection(mContactPhotoHashesSection);
             }
 
             if (!stopSync) {
                 sendContactPhotos(phoneContacts);
 
                 String btAddress = mBluetoothSocket.getRemoteDevice().getAddress();
-                BluetoothConnectionThread.sendCommand(
-                        mBluetoothSocket, "contact_photo_sync_complete: " + btAddress);
+                sendCommand("contact_photo_sync_complete: " + btAddress);
             }
         }
 
@@ -753,9 +1225,8 @@ public class Syncer extends Thread {
                                         "Sending info for contact: %s to device: %s!",
                                 phoneContact.getName(), mDeviceTag));
 
-                        BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                                String.format("incoming_contact: %s",
-                                        phoneContact.toJson()));
+                        sendRecord("incoming_contact", phoneContact,
+                                phoneContact.getFingerprint());
                     }
                 }
             }
@@ -785,8 +1256,7 @@ public class Syncer extends Thread {
                                         "from device: %s!",
                                 clientContact.getKey(), mDeviceTag));
 
-                        BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                                ("delete_contact: " + clientContact.getKey()));
+                        sendCommand(("delete_contact: " + clientContact.getKey()));
                     }
                 }
             }
@@ -799,34 +1269,113 @@ public class Syncer extends Thread {
             Log.d(TAG, String.format("sendContactPhotos: " +
                     "Checking for outdated or missing contact photos on device: %s...", mDeviceTag));
             if (!stopSync) {
+                flushBatch();
+
                 // Iterate over client contact photo hashes and check if any photos
                 // are missing or outdated.
                 for (Contact phoneContact : phoneContacts) {
-                    boolean syncPhoto = true;
+                    Long clientContactPhotoHash = null;
                     for (Map.Entry<Long, Long> clientContactPhoto :
                             mClientContactsPhotoHashes.entrySet()) {
-                        long clientContactId = clientContactPhoto.getKey();
-                        long clientContactPhotoHash = clientContactPhoto.getValue();
-                        if (clientContactId == phoneContact.getPrimaryKey() &&
-                                clientContactPhotoHash == phoneContact.getPhotoHash()) {
-                            syncPhoto = false;
+                        if (clientContactPhoto.getKey() == phoneContact.getPrimaryKey()) {
+                            clientContactPhotoHash = clientContactPhoto.getValue();
                         }
                     }
 
                     // If a photo is missing from the client, then sync it with the client.
-                    if (syncPhoto && phoneContact.hasPhoto()) {
+                    if (phoneContact.hasPhoto() && (clientContactPhotoHash == null ||
+                            clientContactPhotoHash != phoneContact.getPhotoHash())) {
+                        // The hash sent is that of the photo actually sent. A photo sent at a
+                        // lower quality is only sent again once the link allows a better one.
+                        String photo = encodePhoto(phoneContact.getPhoto(),
+                                mConnectionThread.getLinkEstimator().getPhotoQuality());
+                        if (clientContactPhotoHash != null &&
+                                clientContactPhotoHash == photo.hashCode()) {
+                            continue;
+                        }
+
                         Log.d(TAG, String.format("sendContactPhotos: " +
                                         "Sending photo for contact: %s to device: %s!",
                                 phoneContact.getName(), mDeviceTag));
 
-                        BluetoothConnectionThread.sendCommand(mBluetoothSocket,
-                                String.format("incoming_contact_photo: %s | %s | %s",
-                                        phoneContact.getPrimaryKey(),
-                                        phoneContact.getPhotoHash(),
-                                        phoneContact.getPhoto()));
+                        // Written piece by piece so that the base64 photo is only copied
+                        // once, straight into the writer's buffer.
+                        String photoHeader = String.format("incoming_contact_photo: %s | %s | ",
+                                phoneContact.getPrimaryKey(), photo.hashCode());
+                        mConnectionThread.sendFrame(
+                                Frame.lazy(Frame.TYPE_COMMAND, Channel.SYNC, buffer -> {
+                                    buffer.writeUtf8(photoHeader);
+                                    buffer.writeUtf8(photo);
+                                }));
                     }
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Re-encodes a base64 photo as a JPEG of the given quality, for links too slow to send it
+     * as it is. Returns the original photo at full quality, or if re-encoding doesn't make it
+     * smaller.
+     */
+    private String encodePhoto(String photo, int quality) {
+        if (quality >= LinkEstimator.FULL_PHOTO_QUALITY) {
+            return photo;
+        }
+
+        byte[] photoData = Base64.getDecoder().decode(photo);
+        Bitmap bitmap = BitmapFactory.decodeByteArray(photoData, 0, photoData.length);
+        if (bitmap == null) {
+            return photo;
+        }
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(photoData.length);
+        boolean compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, quality, jpeg);
+        bitmap.recycle();
+        if (!compressed || jpeg.size() >= photoData.length) {
+            return photo;
+        }
+
+        return Base64.getEncoder().encodeToString(jpeg.toByteArray());
+    }
+
+    /**
+     * One section of the client's manifest. The connection thread sets it when the section
+     * arrives, and the syncer blocks on it until then instead of polling.
+     */
+    private static class ManifestSection<T> {
+        private final String mName;
+        private final CountDownLatch mReceived = new CountDownLatch(1);
+        private volatile T mValue;
+
+        ManifestSection(String name) {
+            this.mName = name;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        /** Returns the check_* command that asks an older client for this section. */
+        String getLegacyRequest() {
+            // Contact hashes were always asked for as contact info hashes.
+            if (mName.equals("contact_hashes")) {
+                return "check_contact_info_hashes";
+            }
+            return "check_" + mName;
+        }
+
+        void set(T value) {
+            mValue = value;
+            mReceived.countDown();
+        }
+
+        /** Blocks until the section arrives. Returns null if it doesn't arrive in time. */
+        T await(long timeoutMillis) throws InterruptedException {
+            if (!mReceived.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+            return mValue;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package sync.synchrony.Synchrony;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Persists the state of unfinished file transfers, so that a transfer cut off by a dropped
+ * connection can be resumed instead of starting over. Each transfer is kept in a small file of
+ * its own under the app's files directory, named after the transfer's key.
+ *
+ * Outgoing records remember where a file being sent comes from. Incoming records remember where
+ * a file is being written to, and which of its chunks have been written.
+ */
+public class TransferStore {
+    private static final String TAG = "TransferStore";
+
+    // Bumped whenever the layout of a record changes. Records of other versions are dropped.
+    private static final int VERSION = 1;
+
+    // How long a record is kept after it was last saved. A PC that doesn't reconnect within it
+    // has most likely been unpaired, and the app may no longer be allowed to read the file.
+    private static final long RECORD_LIFETIME = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String OUTGOING_SUFFIX = ".out";
+    private static final String INCOMING_SUFFIX = ".in";
+
+    private final File mDirectory;
+
+    public TransferStore(Context context) {
+        this.mDirectory = new File(context.getFilesDir(), "transfers");
+    }
+
+    /** Saves a file being sent, so that it can be resumed on a later connection. */
+    public synchronized void saveOutgoing(Outgoing outgoing) {
+        try (DataOutputStream out = openForWrite(outgoing.mKey + OUTGOING_SUFFIX)) {
+            out.writeInt(VERSION);
+            out.writeUTF(outgoing.mAddress);
+            out.writeUTF(outgoing.mUri);
+            out.writeUTF(outgoing.mName);
+            out.writeLong(outgoing.mSize);
+            out.writeInt(outgoing.mChunkSize);
+        } catch (IOException e) {
+            Log.w(TAG, "saveOutgoing: Couldn't save transfer " + outgoing.mKey, e);
+            return;
+        }
+        commit(outgoing.mKey + OUTGOING_SUFFIX);
+    }
+
+    /** Returns the unfinished files being sent to a device. */
+    public synchronized ArrayList<Outgoing> loadOutgoing(String address) {
+        ArrayList<Outgoing> transfers = new ArrayList<>();
+        File[] files = mDirectory.listFiles((dir, name) -> name.endsWith(OUTGOING_SUFFIX));
+        if (files == null) {
+            return transfers;
+        }
+
+        for (File file : files) {
+            String key = file.getName().substring(
+                    0, file.getName().length() - OUTGOING_SUFFIX.length());
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                if (in.readInt() != VERSION) {
+                    throw new IOException("Unknown version");
+                }
+
+                Outgoing outgoing = new Outgoing(key, in.readUTF(), in.readUTF(), in.readUTF(),
+                        in.readLong(), in.readInt());
+                if (outgoing.mAddress.equals(address)) {
+                    transfers.add(outgoing);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "loadOutgoing: Dropping unreadable transfer " + key, e);
+                file.delete();
+            }
+        }
+        return transfers;
+    }
+
+    public synchronized void deleteOutgoing(String key) {
+        new File(mDirectory, key + OUTGOING_SUFFIX).delete();
+    }
+
+    /** Saves a file being received along with the chunks written so far. */
+    public synchronized void saveIncoming(Incoming incoming) {
+        try (DataOutputStream out = openForWrite(incoming.mKey + INCOMING_SUFFIX)) {
+            byte[] receivedChunks = incoming.mReceivedChunks.toByteArray();
+            out.writeInt(VERSION);
+            out.writeUTF(incoming.mPath);
+            out.writeLong(incoming.mSize);
+            out.writeInt(incoming.mChunkSize);
+            out.writeInt(receivedChunks.length);
+            out.write(receivedChunks);
+        } catch (IOException e) {
+            Log.w(TAG, "saveIncoming: Couldn't save transfer " + incoming.mKey, e);
+            return;
+        }
+        commit(incoming.mKey + INCOMING_SUFFIX);
+    }
+
+    /** Returns a file being received, or null if there is none with the key. */
+    public synchronized Incoming loadIncoming(String key) {
+        File file = new File(mDirectory, key + INCOMING_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown version");
+            }
+
+            String path = in.readUTF();
+            long size = in.readLong();
+            int chunkSize = in.readInt();
+            byte[] receivedChunks = new byte[in.readInt()];
+            in.readFully(receivedChunks);
+            return new Incoming(key, path, size, chunkSize, BitSet.valueOf(receivedChunks));
+        } catch (IOException e) {
+            Log.w(TAG, "loadIncoming: Dropping unreadable transfer " + key, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    public synchronized void deleteIncoming(String key) {
+        new File(mDirectory, key + INCOMING_SUFFIX).delete();
+    }
+
+    /**
+     * Deletes every record that wasn't saved within RECORD_LIFETIME, for any device, along with
+     * the partial files of expired incoming transfers.
+     */
+    public synchronized void deleteExpired() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long expiry = System.currentTimeMillis() - RECORD_LIFETIME;
+        for (File file : files) {
+            if (file.lastModified() >= expiry) {
+                continue;
+            }
+
+            String name = file.getName();
+            if (name.endsWith(INCOMING_SUFFIX)) {
+                Incoming incoming = loadIncoming(
+                        name.substring(0, name.length() - INCOMING_SUFFIX.length()));
+                if (incoming != null) {
+                    new File(incoming.mPath).delete();
+                }
+            }
+
+            Log.d(TAG, "deleteExpired: Dropping expired transfer " + name);
+            file.delete();
+        }
+    }
+
+    /**
+     * Opens a temporary file for a record. The record only replaces the old one once commit
+     * is called, so a crash while saving never leaves a half written record behind.
+     */
+    private DataOutputStream openForWrite(String name) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Couldn't create " + mDirectory);
+        }
+        return new DataOutputStream(new FileOutputStream(new File(mDirectory, name + ".tmp")));
+    }
+
+    private void commit(String name) {
+        File temporary = new File(mDirectory, name + ".tmp");
+        if (!temporary.renameTo(new File(mDirectory, name))) {
+            Log.w(TAG, "commit: Couldn't save " + name);
+            temporary.delete();
+        }
+    }
+
+    /** A file being sent. */
+    public static class Outgoing {
+        final String mKey;
+        final String mAddress;
+        final String mUri;
+        final String mName;
+        final long mSize;
+        final int mChunkSize;
+
+        public Outgoing(String key, String address, String uri, String name, long size,
+                        int chunkSize) {
+            this.mKey = key;
+            this.mAddress = address;
+            this.mUri = uri;
+            this.mName = name;
+            this.mSize = size;
+            this.mChunkSize = chunkSize;
+        }
+    }
+
+    /** A file being received. */
+    public static class Incoming {
+        final String mKey;
+        final String mPath;
+        final long mSize;
+        final int mChunkSize;
+        final BitSet mReceivedChunks;
+
+        public Incoming(String key, String path, long size, int chunkSize,
+                        BitSet receivedChunks) {
+            this.mKey = key;
+            this.mPath = path;
+            this.mSize = size;
+            this.mChunkSize = chunkSize;
+            this.mReceivedChunks = receivedChunks;
+        }
+    }
+}
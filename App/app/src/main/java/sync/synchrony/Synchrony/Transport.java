@@ -0,0 +1,48 @@
+package sync.synchrony.Synchrony;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * The byte streams a SocketReader and SocketWriter run on. Every connection has a Bluetooth
+ * transport, and may add a TCP one for bulk traffic once it is upgraded. See LanTransport.
+ */
+public abstract class Transport {
+    public abstract InputStream getInputStream() throws IOException;
+
+    public abstract OutputStream getOutputStream() throws IOException;
+
+    /** Returns a transport over a Bluetooth sync socket. */
+    public static Transport of(BluetoothSocket bluetoothSocket) {
+        return new Transport() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return bluetoothSocket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return bluetoothSocket.getOutputStream();
+            }
+        };
+    }
+
+    /** Returns a transport over a connected TCP socket. */
+    public static Transport of(Socket socket) {
+        return new Transport() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+        };
+    }
+}
@@ -9,7 +9,6 @@ import android.content.SharedPreferences;
 import android.util.Log;
 
 import com.example.Synchrony.R;
-import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import java.lang.reflect.InvocationTargetException;
@@ -67,8 +66,7 @@ public class Utils {
         // load it into the Utils class.
         String pairedPCSValue = sSharedPreferences.getString(sPairedPCsKey, null);
         if (pairedPCSValue != null) {
-            Gson gson = new Gson();
-            sPairedPCS = gson.fromJson(pairedPCSValue,
+            sPairedPCS = JsonCodec.getGson().fromJson(pairedPCSValue,
                     new TypeToken<CopyOnWriteArrayList<PairedPC>>() {}.getType());
 
             // If not, make a new Paired PC's list.
@@ -139,8 +137,7 @@ public class Utils {
 
     private static void savePairedPCSToSharedPreferences() {
         SharedPreferences.Editor prefsEditor = sSharedPreferences.edit();
-        Gson gson = new Gson();
-        String json = gson.toJson(sPairedPCS);
+        String json = JsonCodec.getGson().toJson(sPairedPCS);
         prefsEditor.putString(sPairedPCsKey, json);
         prefsEditor.apply();
     }
@@ -226,6 +223,27 @@ public class Utils {
         savePairedPCSToSharedPreferences();
     }
 
+    public static void setPCPairingKey(String address, byte[] pairingKey) {
+        Objects.requireNonNull(getPairedPC(address)).setPairingKey(pairingKey);
+        savePairedPCSToSharedPreferences();
+    }
+
+    public static void setPCServiceUuid(String address, String serviceUuid) {
+        Objects.requireNonNull(getPairedPC(address)).setServiceUuid(serviceUuid);
+        savePairedPCSToSharedPreferences();
+    }
+
+    public static void setPCMessageWatermark(String address,
+                                             PairedPC.SyncWatermark messageWatermark) {
+        Objects.requireNonNull(getPairedPC(address)).setMessageWatermark(messageWatermark);
+        savePairedPCSToSharedPreferences();
+    }
+
+    public static void setPCCallWatermark(String address, PairedPC.SyncWatermark callWatermark) {
+        Objects.requireNonNull(getPairedPC(address)).setCallWatermark(callWatermark);
+        savePairedPCSToSharedPreferences();
+    }
+
     public static void setPCLastSync(String address, Date lastSync) {
         Objects.requireNonNull(getPairedPC(address)).setLastSync(lastSync);
         savePairedPCSToSharedPreferences();
@@ -0,0 +1,92 @@
+package sync.synchrony.Synchrony;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures what sealing costs the writer thread, against copying the same frames in the clear,
+ * for small frames such as notifications and full size fragments such as file chunks. Every
+ * frame is also opened again, so the numbers are only printed for frames that round trip. Run
+ * with "./gradlew testDebugUnitTest --tests '*FrameSealerBenchmarkTest'".
+ *
+ * The throughput depends on the machine running the tests. What matters is that it stays far
+ * above what RFCOMM or the local network socket can carry.
+ */
+public class FrameSealerBenchmarkTest {
+    // Amount of payload sealed for each frame size, after an untimed warm up of the same size.
+    private static final int TOTAL_BYTES = 16 * 1024 * 1024;
+
+    // Flags of a frame as SocketWriter seals it once flow control and channels are enabled,
+    // so the header authenticated with every payload is Frame.MAX_HEADER_SIZE long.
+    private static final byte FLAGS =
+            Frame.FLAG_SEQUENCED | Frame.FLAG_CHANNEL | Frame.FLAG_SEALED;
+
+    @Test
+    public void smallFrames() throws GeneralSecurityException, IOException {
+        compare(256);
+    }
+
+    @Test
+    public void fullFragments() throws GeneralSecurityException, IOException {
+        compare(SocketWriter.FRAGMENT_SIZE);
+    }
+
+    /** Seals TOTAL_BYTES in frames of the given size and prints MB/s sealed and copied. */
+    private static void compare(int frameSize) throws GeneralSecurityException, IOException {
+        Random random = new Random(frameSize);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        byte[] header = new byte[Frame.MAX_HEADER_SIZE];
+        byte[] payload = new byte[frameSize];
+        random.nextBytes(payload);
+
+        int frames = TOTAL_BYTES / frameSize;
+        FrameSealer sealer = FrameSealer.forSealing(key);
+        FrameSealer opener = FrameSealer.forOpening(key);
+
+        // Warm up, and check that every sealed frame opens back to the original payload.
+        for (int i = 0; i < frames; i++) {
+            int headerSize = writeHeader(header, i, frameSize);
+            assertEquals(Frame.MAX_HEADER_SIZE, headerSize);
+            int sealedLength = sealer.seal(header, headerSize, payload, 0, frameSize);
+            assertEquals(frameSize + FrameSealer.TAG_SIZE, sealedLength);
+
+            int openedLength = opener.open(header, headerSize, sealer.getOutput(), 0,
+                    sealedLength);
+            assertArrayEquals(payload, Arrays.copyOf(opener.getOutput(), openedLength));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            sealer.seal(header, writeHeader(header, i, frameSize), payload, 0, frameSize);
+        }
+        long sealNanos = Math.max(1, System.nanoTime() - start);
+
+        byte[] copy = new byte[frameSize];
+        start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            System.arraycopy(payload, 0, copy, 0, frameSize);
+        }
+        long copyNanos = Math.max(1, System.nanoTime() - start);
+
+        System.out.println(String.format("%d byte frames: seal %d MB/s, plaintext copy %d MB/s",
+                frameSize, megabytesPerSecond(sealNanos), megabytesPerSecond(copyNanos)));
+    }
+
+    /** Writes the header SocketWriter would write for the given frame. Returns its size. */
+    private static int writeHeader(byte[] header, int sequence, int frameSize) {
+        return Frame.writeHeader(header, 0, Frame.TYPE_RECORD, FLAGS, sequence, Channel.SYNC,
+                frameSize + FrameSealer.TAG_SIZE);
+    }
+
+    private static long megabytesPerSecond(long nanos) {
+        return (long) (TOTAL_BYTES / (nanos / 1e9) / (1024 * 1024));
+    }
+}
@@ -0,0 +1,100 @@
+package sync.synchrony.Synchrony;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares RecordCodec with the JSON commands it replaces, in bytes and time per record. The
+ * sizes are checked, the times are only printed, since they depend on the machine running the
+ * tests. Run with "./gradlew testDebugUnitTest --tests '*RecordCodecBenchmarkTest'".
+ */
+public class RecordCodecBenchmarkTest {
+    // Encodes done untimed first, so the JIT has compiled both encoders before timing starts.
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void messageIsSmallerThanJson() throws IOException {
+        Syncer.Message message = new Syncer.Message();
+        message.setId(81234);
+        message.setThreadId(412);
+        message.setNumber("+15555550123");
+        message.setDateSent(1634567890123L);
+        message.setType("Received");
+        message.setRead(1);
+        message.setBody("Running about ten minutes late, save me a seat if you get there first.");
+
+        compare("incoming_message", message);
+    }
+
+    @Test
+    public void callIsSmallerThanJson() throws IOException {
+        Syncer.Call call = new Syncer.Call();
+        call.setId(9120);
+        call.setNumber("+15555550123");
+        call.setDateMillis(1634567890123L);
+        call.setDate("10/18/21, 10:38 AM");
+        call.setType("Incoming");
+        call.setDurationSeconds(754);
+        call.setDuration("00:12:34");
+
+        compare("incoming_call", call);
+    }
+
+    @Test
+    public void contactIsSmallerThanJson() throws IOException {
+        Syncer.Contact contact = new Syncer.Contact("Jordan Example");
+        contact.setPrimaryKey(1532);
+        contact.addPhone("Mobile", "+15555550123");
+        contact.addPhone("Work", "+15555550199");
+        contact.addEmail("Home", "jordan@example.com");
+        contact.generateHash();
+
+        compare("incoming_contact", contact);
+    }
+
+    /** Encodes a record both ways, prints the bytes and time per record of each. */
+    private static void compare(String command, Object record) throws IOException {
+        PayloadBuffer buffer = new PayloadBuffer();
+        byte[] prefix = (command + ": ").getBytes(StandardCharsets.UTF_8);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            encodeBinary(record, buffer);
+            encodeJson(prefix, record, buffer);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encodeBinary(record, buffer);
+        }
+        long binaryNanos = (System.nanoTime() - start) / ITERATIONS;
+        int binarySize = buffer.size();
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encodeJson(prefix, record, buffer);
+        }
+        long jsonNanos = (System.nanoTime() - start) / ITERATIONS;
+        int jsonSize = buffer.size();
+
+        System.out.println(String.format("%s: binary %d bytes in %d ns, json %d bytes in %d ns",
+                record.getClass().getSimpleName(), binarySize, binaryNanos, jsonSize, jsonNanos));
+        assertTrue(binarySize < jsonSize);
+    }
+
+    private static void encodeBinary(Object record, PayloadBuffer buffer) throws IOException {
+        buffer.reset();
+        RecordCodec.encode(record, buffer);
+    }
+
+    private static void encodeJson(byte[] prefix, Object record, PayloadBuffer buffer)
+            throws IOException {
+        buffer.reset();
+        buffer.write(prefix);
+        buffer.writeJson(record);
+    }
+}